@@ -0,0 +1,164 @@
+package com.footmanff.common.benchmark;
+
+import com.footmanff.common.util.biz.batch.BatchExecParam;
+import com.footmanff.common.util.biz.batch.BatchExecutor;
+import com.footmanff.common.util.biz.batch.BatchExecutor2;
+import com.footmanff.common.util.biz.batch.BatchExecutor3;
+import com.footmanff.common.util.biz.batch.BatchMetrics;
+import com.footmanff.common.util.biz.batch.BatchOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 对比各批处理合并实现在相同负载下的吞吐和调用方延迟
+ * <p/>
+ * 吞吐看Throughput模式的ops/ms，调用方延迟看SampleTime模式输出的p50/p99/p999。
+ * 每个fork结束时在控制台输出执行器自身的指标，其中包含平均合并度（一个批次合并的任务数）。
+ * <p/>
+ * 调用线程数通过-t指定，例如:
+ * <pre>
+ * mvn -pl common-benchmark -am package -DskipTests
+ * java -jar common-benchmark/target/benchmarks.jar BatchExecutorBenchmark -t 16 -p executor=EXECUTOR2,EXECUTOR3
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// 批处理执行器的消费线程不是守护线程，缩短fork结束时等待这些线程退出的时间
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+@Threads(16)
+public class BatchExecutorBenchmark {
+
+    @Param({"EXECUTOR", "EXECUTOR2", "EXECUTOR3", "EXECUTOR3_SELF_FLUSH", "EXECUTOR3_FLUSHER", "BATCH2"})
+    public String executor;
+
+    /**
+     * 参与调用的key个数，1代表所有调用都落在同一个热点key上
+     */
+    @Param({"1", "64"})
+    public int keyCount;
+
+    @Param({"16", "128"})
+    public int batchLimit;
+
+    /**
+     * 毫秒
+     */
+    @Param({"5"})
+    public long maxTime;
+
+    /**
+     * 合并函数的耗时，微秒，模拟一次批量下游调用
+     */
+    @Param({"0", "500"})
+    public long batchCost;
+
+    private String[] keys;
+
+    private Function<BatchExecParam<Integer>, Integer> bachFunc;
+
+    private Invoker invoker;
+
+    private BatchMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key" + i;
+        }
+        long costNanos = TimeUnit.MICROSECONDS.toNanos(batchCost);
+        bachFunc = param -> {
+            if (costNanos > 0) {
+                LockSupport.parkNanos(costNanos);
+            }
+            return param.getTaskList().size();
+        };
+        switch (executor) {
+            case "EXECUTOR": {
+                BatchExecutor<Integer, Integer> batchExecutor = new BatchExecutor<>();
+                invoker = (key, task) -> batchExecutor.execute(key, task, maxTime, batchLimit, bachFunc);
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            case "EXECUTOR2": {
+                BatchExecutor2<Integer, Integer> batchExecutor = new BatchExecutor2<>(batchLimit, maxTime);
+                invoker = (key, task) -> batchExecutor.execute(key, task, bachFunc);
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            case "EXECUTOR3": {
+                BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(batchLimit, maxTime);
+                invoker = (key, task) -> batchExecutor.execute(key, task, bachFunc);
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            case "EXECUTOR3_SELF_FLUSH": {
+                BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(batchLimit, maxTime,
+                        new BatchOptions().setSelfFlush(true));
+                invoker = (key, task) -> batchExecutor.execute(key, task, bachFunc);
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            case "EXECUTOR3_FLUSHER": {
+                BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(batchLimit, maxTime,
+                        new BatchOptions().setFlusherMode(true));
+                invoker = (key, task) -> batchExecutor.execute(key, task, bachFunc);
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            case "BATCH2": {
+                com.footmanff.common.util.biz.batch2.BatchExecutor<Integer, Integer> batchExecutor =
+                        new com.footmanff.common.util.biz.batch2.BatchExecutor<>(batchLimit, maxTime,
+                                Runtime.getRuntime().availableProcessors(), 1 << 16,
+                                Runtime.getRuntime().availableProcessors(), param -> bachFunc.apply(
+                                new BatchExecParam<>(param.getKey(), param.getTaskList(), null)));
+                invoker = batchExecutor::execute;
+                metrics = batchExecutor.getMetrics();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("不支持的执行器: " + executor);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(executor + " " + metrics);
+    }
+
+    @Benchmark
+    public Integer execute() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = keys[keyCount == 1 ? 0 : random.nextInt(keyCount)];
+        return invoker.invoke(key, random.nextInt());
+    }
+
+    @FunctionalInterface
+    private interface Invoker {
+
+        Integer invoke(String key, Integer task);
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 自适应批次策略，按key统计请求到达间隔以及批处理耗时，动态调整主线程的等待时间以及批次大小
+ * <ul>
+ *     <li>到达间隔的平均值超过maxTime，等待窗口内等不到其他请求，不等待直接执行</li>
+ *     <li>批次大小取一次批处理耗时内预计到达的请求数，限制在[batchLimit, maxBatchLimit]之间，下游越慢批次越大</li>
+ *     <li>等待时间取攒满一个批次预计需要的时间，限制在[minTime, maxTime]之间</li>
+ * </ul>
+ * 统计值使用指数加权移动平均，并发更新时允许丢失个别样本，不加锁
+ * <p/>
+ * 统计的key数量受maxKeys限制，长时间没有请求的key在新key加入时被清理
+ */
+public class AdaptiveBatchPolicy {
+
+    /**
+     * 指数加权移动平均中新样本的权重
+     */
+    private static final double ALPHA = 0.2D;
+
+    private static final int DEFAULT_MAX_KEYS = 10000;
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final ConcurrentHashMap<String, KeyStat> statMap = new ConcurrentHashMap<>();
+
+    private final Function<String, KeyStat> statFactory = k -> new KeyStat();
+
+    private final long minTime;
+
+    private final int maxBatchLimit;
+
+    private final KeyEvictor<String, KeyStat> keyEvictor;
+
+    /**
+     * @param minTime       有合并价值时主线程最短等待时间，毫秒
+     * @param maxBatchLimit 高峰期批次大小上限
+     */
+    public AdaptiveBatchPolicy(long minTime, int maxBatchLimit) {
+        this(minTime, maxBatchLimit, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param minTime       有合并价值时主线程最短等待时间，毫秒
+     * @param maxBatchLimit 高峰期批次大小上限
+     * @param maxKeys       最多统计的key数量
+     */
+    public AdaptiveBatchPolicy(long minTime, int maxBatchLimit, int maxKeys) {
+        if (minTime < 0) {
+            throw new IllegalArgumentException("minTime不得小于0");
+        }
+        if (maxBatchLimit <= 0) {
+            throw new IllegalArgumentException("maxBatchLimit需大于0");
+        }
+        this.minTime = minTime;
+        this.maxBatchLimit = maxBatchLimit;
+        this.keyEvictor = new KeyEvictor<>(statMap, maxKeys, IDLE_NANOS, KeyStat::lastActive);
+    }
+
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public int getMaxBatchLimit() {
+        return maxBatchLimit;
+    }
+
+    public KeyStat stat(String key) {
+        KeyStat stat = statMap.get(key);
+        if (stat == null) {
+            keyEvictor.beforeInsert();
+            stat = statMap.computeIfAbsent(key, statFactory);
+        }
+        return stat;
+    }
+
+    /**
+     * 一个key的统计值
+     */
+    public class KeyStat {
+
+        private final long created = System.nanoTime();
+
+        private volatile long lastArrival;
+
+        /**
+         * 平均到达间隔，纳秒，没有样本时为无穷大
+         */
+        private volatile double interval = Double.POSITIVE_INFINITY;
+
+        /**
+         * 平均批处理耗时，纳秒
+         */
+        private volatile double latency;
+
+        private long lastActive() {
+            long last = lastArrival;
+            return last == 0 ? created : last;
+        }
+
+        /**
+         * 记录一次请求到达
+         */
+        public void onArrival() {
+            long now = System.nanoTime();
+            long last = lastArrival;
+            lastArrival = now;
+            if (last == 0) {
+                return;
+            }
+            double sample = now - last;
+            double current = interval;
+            interval = Double.isInfinite(current) ? sample : current + ALPHA * (sample - current);
+        }
+
+        /**
+         * 记录一次批处理耗时
+         */
+        public void onBatch(long costNanos) {
+            double current = latency;
+            latency = current == 0 ? costNanos : current + ALPHA * (costNanos - current);
+        }
+
+        /**
+         * 当前的批次大小
+         *
+         * @param batchLimit 低峰期批次大小
+         */
+        public int batchLimit(int batchLimit) {
+            double i = interval;
+            if (Double.isInfinite(i) || i <= 0) {
+                return batchLimit;
+            }
+            double expected = Math.ceil(latency / i);
+            return (int) Math.max(batchLimit, Math.min(maxBatchLimit, expected));
+        }
+
+        /**
+         * 主线程当前应该等待的时间，纳秒，0代表不等待直接执行
+         *
+         * @param maxTime    最长等待时间，毫秒
+         * @param batchLimit 当前的批次大小
+         */
+        public long waitNanos(long maxTime, int batchLimit) {
+            long maxNanos = TimeUnit.MILLISECONDS.toNanos(maxTime);
+            double i = interval;
+            if (Double.isInfinite(i) || i >= maxNanos) {
+                // 窗口内预计等不到其他请求
+                return 0L;
+            }
+            double fill = i * batchLimit;
+            return (long) Math.max(TimeUnit.MILLISECONDS.toNanos(minTime), Math.min(maxNanos, fill));
+        }
+    }
+
+}
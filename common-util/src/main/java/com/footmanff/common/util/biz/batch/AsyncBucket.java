@@ -0,0 +1,144 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * 异步合并使用的bucket，任务和等待结果的future一一对应
+ * <p/>
+ * 任务通过{@link TaskAccumulator}无锁加入，同一个热点key的调用方之间只竞争一次CAS，不再排队等锁
+ * <p/>
+ * bucket可以回收复用：每次复用generation加一，持有旧引用的线程（定时flush、提前flush、重新获取bucket的调用方）
+ * 通过generation识别出bucket已经不是自己看到的那一批，不会误操作新的一批任务。
+ * bucket创建以后处于未开启状态，注册成功以后{@link #open()}才接收任务，保证接收任务的bucket一定是已经注册的
+ */
+public class AsyncBucket<T, R> {
+
+    private final TaskAccumulator<T, CompletableFuture<R>> accumulator = new TaskAccumulator<>(false);
+
+    private long id;
+
+    private String key;
+
+    /**
+     * bucket注册使用的key，分片时为{@link KeySharding.ShardKey}，否则和key相同
+     */
+    private Object slotKey;
+
+    private BatchEachFunction<T, R> bachFunc;
+
+    private volatile ScheduledFuture<?> timeoutFlush;
+
+    public AsyncBucket(String key, BatchEachFunction<T, R> bachFunc) {
+        this(key, key, bachFunc);
+    }
+
+    public AsyncBucket(String key, Object slotKey, BatchEachFunction<T, R> bachFunc) {
+        init(key, slotKey, bachFunc);
+    }
+
+    /**
+     * 初始化新的一批，新建或者从池中取出以后调用，调用以后处于未开启状态
+     *
+     * @return 当前的generation
+     */
+    public long init(String key, Object slotKey, BatchEachFunction<T, R> bachFunc) {
+        this.id = BucketIds.next();
+        this.key = key;
+        this.slotKey = slotKey;
+        this.bachFunc = bachFunc;
+        return accumulator.epoch();
+    }
+
+    /**
+     * bucket注册成功以后开始接收任务，init中写入的字段随开启一起发布给其他线程
+     */
+    public void open() {
+        accumulator.open(accumulator.epoch());
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param generation 调用方拿到bucket以后读到的generation
+     * @return 添加以后bucket中的任务数；-1代表bucket已经开始批处理，需要从注册表移除并重新获取；
+     * -2代表bucket还没有开始接收任务或者已经被回收复用，需要重新获取
+     */
+    public int add(long generation, T task, CompletableFuture<R> future) {
+        return accumulator.add(generation, task, future, System.nanoTime());
+    }
+
+    /**
+     * 封闭bucket，封闭以后不再接收任务
+     *
+     * @param generation 发起flush时bucket的generation
+     * @return 封闭时的任务数；-1代表bucket已经被其他线程封闭，或者已经被回收复用
+     */
+    public int seal(long generation) {
+        return accumulator.seal(generation);
+    }
+
+    public boolean isSealed() {
+        return accumulator.isSealed();
+    }
+
+    /**
+     * 批处理完成以后清空状态以便复用，累积数组保留容量
+     */
+    public void recycle() {
+        key = null;
+        slotKey = null;
+        bachFunc = null;
+        timeoutFlush = null;
+        accumulator.reset();
+    }
+
+    public String getId() {
+        return BucketIds.format(id);
+    }
+
+    public long getGeneration() {
+        return accumulator.epoch();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Object getSlotKey() {
+        return slotKey;
+    }
+
+    public BatchEachFunction<T, R> getBachFunc() {
+        return bachFunc;
+    }
+
+    /**
+     * 仅在seal以后读取
+     */
+    public T getTask(int index) {
+        return accumulator.getTask(index);
+    }
+
+    /**
+     * 仅在seal以后读取
+     */
+    public CompletableFuture<R> getFuture(int index) {
+        return accumulator.getWaiter(index);
+    }
+
+    /**
+     * 任务加入的时间，纳秒，用于统计等待时间。仅在seal以后读取
+     */
+    public long getArrival(int index) {
+        return accumulator.getStamp(index);
+    }
+
+    public ScheduledFuture<?> getTimeoutFlush() {
+        return timeoutFlush;
+    }
+
+    public void setTimeoutFlush(ScheduledFuture<?> timeoutFlush) {
+        this.timeoutFlush = timeoutFlush;
+    }
+}
@@ -0,0 +1,584 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * 异步合并执行。调用方只负责把任务放进bucket并拿到future，不阻塞调用线程
+ * <p/>
+ * 每个key同一时刻只有一个打开的bucket，第一个任务进入时注册一个maxTime以后的定时flush，任务数达到batchLimit时提前flush。
+ * 窗口到期、批处理执行都由flusher线程负责，批处理完成以后由flusher线程完成每个任务的future
+ * <p/>
+ * 配置了分片数的key，每个分片各自有一个打开的bucket，同一个key的多个分片可以在多个flusher线程上并行执行批处理
+ * <p/>
+ * 合并函数整批抛出异常时，按{@link FailureIsolation}拆分批次重试，定位出失败的任务，其余任务正常完成
+ * <p/>
+ * 配置了{@link BatchOptions#getMaxInFlight()}时，每个key执行中的批次数达到上限以后，需要flush的bucket排队等待，
+ * 排队期间bucket继续接收任务，有批次完成时把执行名额直接交给排队的flush
+ */
+public class BatchDispatcher<T, R> {
+
+    private final ConcurrentHashMap<Object, AsyncBucket<T, R>> bucketMap = new ConcurrentHashMap<>();
+
+    private final ScheduledThreadPoolExecutor flusher;
+
+    private final BatchMetrics metrics;
+
+    private final KeySharding sharding;
+
+    private volatile Combiner<T> combiner;
+
+    private final FailureIsolation failureIsolation;
+
+    /**
+     * 逐个任务重试使用的线程池，只有{@link FailureIsolation#PER_ITEM}时创建
+     */
+    private final ThreadPoolExecutor isolationExecutor;
+
+    /**
+     * 批处理完成以后回收的bucket，为null时不复用
+     */
+    private final ObjectPool<AsyncBucket<T, R>> bucketPool;
+
+    /**
+     * 每个key同时执行的批次数上限，0代表不限制
+     */
+    private final int maxInFlight;
+
+    /**
+     * 执行中的批次数以及排队的flush，key没有执行中的批次时移除
+     */
+    private final ConcurrentHashMap<Object, InFlight> inFlightMap = new ConcurrentHashMap<>();
+
+    /**
+     * 任务数达到累积上限、已经从bucketMap移除但还没有开始批处理的bucket，关闭时和bucketMap中的bucket一起丢弃
+     */
+    private final Set<AsyncBucket<T, R>> retiredBuckets = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean shutdown;
+
+    public BatchDispatcher(String threadPrefix, int flusherThreads) {
+        this(threadPrefix, flusherThreads, BatchMetrics.NONE);
+    }
+
+    public BatchDispatcher(String threadPrefix, int flusherThreads, BatchMetrics metrics) {
+        this(threadPrefix, flusherThreads, metrics, null);
+    }
+
+    /**
+     * @param shardCount 根据key返回分片数，为null时不分片
+     */
+    public BatchDispatcher(String threadPrefix, int flusherThreads, BatchMetrics metrics, ToIntFunction<String> shardCount) {
+        this(threadPrefix, new BatchOptions().setFlusherThreads(flusherThreads).setShardCount(shardCount), metrics);
+    }
+
+    /**
+     * 使用options中的flusher线程数、分片、失败隔离配置
+     */
+    public BatchDispatcher(String threadPrefix, BatchOptions options, BatchMetrics metrics) {
+        this.metrics = metrics;
+        this.sharding = options.getShardCount() == null ? null : new KeySharding(options.getShardCount());
+        this.failureIsolation = options.getFailureIsolation();
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.flusher = new ScheduledThreadPoolExecutor(options.getFlusherThreads(), r -> {
+            Thread thread = new Thread(r, threadPrefix + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 提前flush的bucket会取消定时任务，取消以后立即从队列移除，避免堆积
+        this.flusher.setRemoveOnCancelPolicy(true);
+        this.flusher.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        this.flusher.allowCoreThreadTimeOut(true);
+        if (failureIsolation == FailureIsolation.PER_ITEM) {
+            int parallelism = options.getIsolationParallelism();
+            AtomicInteger isolationIndex = new AtomicInteger();
+            this.isolationExecutor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, threadPrefix + "isolation-" + isolationIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.isolationExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            this.isolationExecutor = null;
+        }
+        this.bucketPool = options.getBucketPoolSize() > 0 ? new ObjectPool<>(options.getBucketPoolSize()) : null;
+        this.maxInFlight = options.getMaxInFlight();
+    }
+
+    /**
+     * 提交一个任务到key对应的bucket
+     *
+     * @param key        执行批次唯一键
+     * @param task       当前执行参数
+     * @param maxTime    bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param batchLimit 一个批次最大合并任务数，达到以后提前flush
+     * @param bachFunc   合并多个任务函数，以创建bucket的任务传入的函数为准
+     * @return 批处理完成以后完成的future，批处理异常时future异常完成
+     */
+    public CompletableFuture<R> submit(String key, T task, long maxTime, int batchLimit, Function<BatchExecParam<T>, R> bachFunc) {
+        return submitEach(key, task, maxTime, batchLimit, BatchEachFunction.of(bachFunc));
+    }
+
+    /**
+     * 提交一个任务到key对应的bucket，每个任务拿到自己的结果
+     *
+     * @param key        执行批次唯一键
+     * @param task       当前执行参数
+     * @param maxTime    bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param batchLimit 一个批次最大合并任务数，达到以后提前flush
+     * @param bachFunc   按任务返回结果的合并函数，以创建bucket的任务传入的函数为准
+     * @return 当前任务对应结果的future，当前任务异常时future异常完成。bucket开始批处理前取消future，任务不会被执行
+     */
+    public CompletableFuture<R> submitEach(String key, T task, long maxTime, int batchLimit, BatchEachFunction<T, R> bachFunc) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        offer(key, task, future, maxTime, batchLimit, bachFunc);
+        return future;
+    }
+
+    /**
+     * 提交一个任务并在timeout内等待结果
+     * <p/>
+     * 超时或者被中断时取消future：如果bucket还没有开始批处理，批处理时跳过这个任务；如果已经开始批处理，
+     * 批处理照常执行，只是调用方不再等待结果
+     *
+     * @param timeout 调用方最长等待时间，包含窗口等待和批处理耗时
+     * @param unit    timeout的单位
+     * @return 当前任务对应的结果
+     * @throws RuntimeException 超时时cause为{@link TimeoutException}，被中断时cause为{@link InterruptedException}
+     */
+    public R submitEachAndWait(String key, T task, long maxTime, int batchLimit, BatchEachFunction<T, R> bachFunc,
+                               long timeout, TimeUnit unit) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        offer(key, task, future, maxTime, batchLimit, bachFunc);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // 还没有开始批处理时任务被跳过，已经开始时批处理结果直接丢弃
+            future.cancel(false);
+            metrics.recordTimeout();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @see #submitEachAndWait(String, Object, long, int, BatchEachFunction, long, TimeUnit)
+     */
+    public R submitAndWait(String key, T task, long maxTime, int batchLimit, Function<BatchExecParam<T>, R> bachFunc,
+                           long timeout, TimeUnit unit) {
+        return submitEachAndWait(key, task, maxTime, batchLimit, BatchEachFunction.of(bachFunc), timeout, unit);
+    }
+
+    /**
+     * 把任务和future放进key对应的bucket
+     */
+    private void offer(String key, T task, CompletableFuture<R> future, long maxTime, int batchLimit,
+                                    BatchEachFunction<T, R> bachFunc) {
+        Object slotKey = sharding == null ? key : sharding.select(key);
+        while (true) {
+            if (shutdown) {
+                future.completeExceptionally(new RejectedExecutionException("BatchDispatcher已经关闭"));
+                return;
+            }
+            AsyncBucket<T, R> bucket = bucketMap.get(slotKey);
+            long generation;
+            boolean created = false;
+            if (bucket == null) {
+                AsyncBucket<T, R> newBucket = newBucket(key, slotKey, bachFunc);
+                generation = newBucket.getGeneration();
+                bucket = bucketMap.putIfAbsent(slotKey, newBucket);
+                if (bucket == null) {
+                    bucket = newBucket;
+                    bucket.open();
+                    created = true;
+                } else {
+                    // 注册失败的bucket没有被其他线程看到过，直接回收
+                    releaseBucket(newBucket);
+                    generation = bucket.getGeneration();
+                }
+            } else {
+                generation = bucket.getGeneration();
+            }
+            int size = bucket.add(generation, task, future);
+            if (size == -1) {
+                // bucket已经开始批处理或者已满，移除以后重新获取。bucket可能已经被回收复用并重新注册，只移除还是这一批的bucket
+                AsyncBucket<T, R> sealed = bucket;
+                long sealedGeneration = generation;
+                bucketMap.computeIfPresent(slotKey, (k, b) -> {
+                    if (b != sealed || b.getGeneration() != sealedGeneration) {
+                        return b;
+                    }
+                    if (!b.isSealed()) {
+                        // 已满还没有开始批处理，flush还在排队
+                        retiredBuckets.add(b);
+                    }
+                    return null;
+                });
+                metrics.recordReacquire();
+                continue;
+            }
+            if (size < 0) {
+                // 其他线程刚注册还没有开始接收任务，或者拿到的是已经回收复用的bucket
+                Thread.yield();
+                continue;
+            }
+            AsyncBucket<T, R> current = bucket;
+            long currentGeneration = generation;
+            // 流水线模式下bucket可能超过batchLimit继续累积，只在恰好达到时提交一次提前flush
+            try {
+                if (maxInFlight > 0 ? size == batchLimit : size >= batchLimit) {
+                    flusher.execute(() -> flush(current, slotKey, currentGeneration, true));
+                } else if (created) {
+                    current.setTimeoutFlush(flusher.schedule(() -> flush(current, slotKey, currentGeneration, false),
+                            maxTime, TimeUnit.MILLISECONDS));
+                }
+            } catch (RejectedExecutionException e) {
+                // 并发关闭，bucket不会再被flush
+                discard(current, currentGeneration);
+            }
+            return;
+        }
+    }
+
+    private AsyncBucket<T, R> newBucket(String key, Object slotKey, BatchEachFunction<T, R> bachFunc) {
+        AsyncBucket<T, R> bucket = bucketPool == null ? null : bucketPool.acquire();
+        if (bucket == null) {
+            return new AsyncBucket<>(key, slotKey, bachFunc);
+        }
+        bucket.init(key, slotKey, bachFunc);
+        return bucket;
+    }
+
+    private void releaseBucket(AsyncBucket<T, R> bucket) {
+        if (bucketPool != null) {
+            bucket.recycle();
+            bucketPool.release(bucket);
+        }
+    }
+
+    private void flush(AsyncBucket<T, R> bucket, Object slotKey, long generation, boolean early) {
+        if (maxInFlight > 0 && !acquireFlight(slotKey, () -> flushAcquired(bucket, slotKey, generation, early))) {
+            // 执行中的批次已经达到上限，bucket继续累积，等待有批次完成
+            return;
+        }
+        flushAcquired(bucket, slotKey, generation, early);
+    }
+
+    /**
+     * 已经拿到执行名额以后flush，bucket已经被其他线程flush时直接归还名额
+     */
+    private void flushAcquired(AsyncBucket<T, R> bucket, Object slotKey, long generation, boolean early) {
+        int size = bucket.seal(generation);
+        if (size < 0) {
+            releaseFlight(slotKey);
+            return;
+        }
+        try {
+            flushSealed(bucket, size, early);
+        } finally {
+            releaseBucket(bucket);
+            releaseFlight(slotKey);
+        }
+    }
+
+    /**
+     * 获取key的执行名额，没有名额时flush进入排队
+     *
+     * @return false: 没有名额，deferred已经排队
+     */
+    private boolean acquireFlight(Object slotKey, Runnable deferred) {
+        boolean[] acquired = new boolean[1];
+        inFlightMap.compute(slotKey, (k, flight) -> {
+            if (flight == null) {
+                flight = new InFlight();
+            }
+            if (flight.count < maxInFlight) {
+                flight.count++;
+                acquired[0] = true;
+            } else {
+                flight.pending.add(deferred);
+            }
+            return flight;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * 归还key的执行名额，有排队的flush时名额直接交给它
+     */
+    private void releaseFlight(Object slotKey) {
+        if (maxInFlight <= 0) {
+            return;
+        }
+        Runnable[] next = new Runnable[1];
+        inFlightMap.computeIfPresent(slotKey, (k, flight) -> {
+            next[0] = flight.pending.poll();
+            if (next[0] != null) {
+                return flight;
+            }
+            flight.count--;
+            return flight.count == 0 ? null : flight;
+        });
+        if (next[0] != null) {
+            try {
+                flusher.execute(next[0]);
+            } catch (RejectedExecutionException e) {
+                // 已经关闭，排队的bucket由shutdown处理
+            }
+        }
+    }
+
+    /**
+     * 停止flusher线程：排队等待执行、等待窗口到期的bucket不再执行，其中的future以{@link RejectedExecutionException}异常完成，
+     * 之后提交的任务同样直接失败。已经开始的批处理照常完成，可以通过{@link #awaitTermination(long, TimeUnit)}等待
+     */
+    public void shutdown() {
+        shutdown = true;
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        flusher.shutdown();
+        flusher.getQueue().clear();
+        for (AsyncBucket<T, R> bucket : bucketMap.values()) {
+            discard(bucket, bucket.getGeneration());
+        }
+        for (AsyncBucket<T, R> bucket : retiredBuckets) {
+            discard(bucket, bucket.getGeneration());
+        }
+    }
+
+    /**
+     * 等待已经开始的批处理完成
+     *
+     * @return false: 超时时仍有批处理在执行
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        try {
+            if (!flusher.awaitTermination(timeout, unit)) {
+                return false;
+            }
+            // 执行中的批处理可能还在向隔离线程池提交任务，flusher结束以后再关闭
+            if (isolationExecutor != null) {
+                isolationExecutor.shutdown();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 封闭并丢弃bucket，其中的任务不再执行
+     */
+    private void discard(AsyncBucket<T, R> bucket, long generation) {
+        int size = bucket.seal(generation);
+        if (size < 0) {
+            return;
+        }
+        bucketMap.remove(bucket.getSlotKey(), bucket);
+        retiredBuckets.remove(bucket);
+        RejectedExecutionException e = new RejectedExecutionException("BatchDispatcher已经关闭");
+        for (int i = 0; i < size; i++) {
+            bucket.getFuture(i).completeExceptionally(e);
+        }
+    }
+
+    private void flushSealed(AsyncBucket<T, R> bucket, int size, boolean early) {
+        metrics.recordFlush(early);
+        bucketMap.remove(bucket.getSlotKey(), bucket);
+        // 在bucketMap移除以后执行，移除已满bucket时加入的记录一定可见
+        retiredBuckets.remove(bucket);
+        ScheduledFuture<?> timeoutFlush = bucket.getTimeoutFlush();
+        if (timeoutFlush != null) {
+            timeoutFlush.cancel(false);
+        }
+
+        // 从累积数组中取出任务，调用方已经取消的任务不再执行
+        List<T> taskList = new ArrayList<>(size);
+        List<CompletableFuture<R>> futureList = new ArrayList<>(size);
+        long[] arrivalList = new long[size];
+        for (int i = 0; i < size; i++) {
+            CompletableFuture<R> future = bucket.getFuture(i);
+            if (!future.isDone()) {
+                arrivalList[futureList.size()] = bucket.getArrival(i);
+                taskList.add(bucket.getTask(i));
+                futureList.add(future);
+            }
+        }
+        if (futureList.isEmpty()) {
+            return;
+        }
+
+        // 预聚合，groupIndex[i]为第i个调用方对应的合并以后任务的下标
+        Combiner<T> combiner = this.combiner;
+        int[] groupIndex = null;
+        if (combiner != null) {
+            groupIndex = new int[taskList.size()];
+            taskList = Combiner.combineAll(combiner, taskList, groupIndex);
+        }
+
+        List<BatchExecResult<R>> resultList;
+        long s = System.nanoTime();
+        try {
+            try {
+                resultList = apply(bucket, taskList);
+            } finally {
+                metrics.recordBatch(bucket.getKey(), futureList.size(), System.nanoTime() - s);
+            }
+        } catch (Throwable e) {
+            if (failureIsolation == FailureIsolation.NONE || taskList.size() == 1) {
+                for (int i = 0; i < futureList.size(); i++) {
+                    futureList.get(i).completeExceptionally(e);
+                    metrics.recordWait(System.nanoTime() - arrivalList[i]);
+                }
+                return;
+            }
+            // 拆分批次，只让导致失败的任务失败
+            resultList = isolate(bucket, taskList, e);
+        }
+        for (int i = 0; i < futureList.size(); i++) {
+            complete(futureList.get(i), resultList.get(groupIndex == null ? i : groupIndex[i]));
+            metrics.recordWait(System.nanoTime() - arrivalList[i]);
+        }
+    }
+
+    /**
+     * 执行合并函数并校验结果数
+     */
+    private List<BatchExecResult<R>> apply(AsyncBucket<T, R> bucket, List<T> taskList) {
+        BatchExecParam<T> batchExecParam = new BatchExecParam<>(bucket.getKey(), taskList, null);
+        batchExecParam.setBucketId(bucket.getId());
+        List<BatchExecResult<R>> resultList = bucket.getBachFunc().apply(batchExecParam);
+        if (resultList == null || resultList.size() != taskList.size()) {
+            throw new IllegalStateException("合并函数返回的结果数与任务数不一致, taskSize: " + taskList.size()
+                    + " resultSize: " + (resultList == null ? null : resultList.size()));
+        }
+        return resultList;
+    }
+
+    /**
+     * 整批失败以后隔离失败的任务
+     *
+     * @return 和taskList按下标对应的结果
+     */
+    private List<BatchExecResult<R>> isolate(AsyncBucket<T, R> bucket, List<T> taskList, Throwable e) {
+        List<BatchExecResult<R>> resultList = new ArrayList<>(Collections.nCopies(taskList.size(), null));
+        if (failureIsolation == FailureIsolation.BISECT) {
+            bisect(bucket, taskList, 0, taskList.size(), e, resultList);
+            return resultList;
+        }
+        List<CompletableFuture<Void>> retryList = new ArrayList<>(taskList.size());
+        for (int i = 0; i < taskList.size(); i++) {
+            int index = i;
+            retryList.add(CompletableFuture.runAsync(() -> resultList.set(index, applyOne(bucket, taskList.get(index))),
+                    isolationExecutor));
+        }
+        for (int i = 0; i < retryList.size(); i++) {
+            try {
+                retryList.get(i).join();
+            } catch (CompletionException ex) {
+                resultList.set(i, new BatchExecResult<>(ex.getCause()));
+            }
+        }
+        return resultList;
+    }
+
+    /**
+     * 拆分[from, to)区间的任务分别重试，e是整个区间执行时的异常
+     */
+    private void bisect(AsyncBucket<T, R> bucket, List<T> taskList, int from, int to, Throwable e,
+                        List<BatchExecResult<R>> resultList) {
+        if (to - from == 1) {
+            resultList.set(from, new BatchExecResult<>(e));
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        bisectPart(bucket, taskList, from, mid, resultList);
+        bisectPart(bucket, taskList, mid, to, resultList);
+    }
+
+    private void bisectPart(AsyncBucket<T, R> bucket, List<T> taskList, int from, int to,
+                            List<BatchExecResult<R>> resultList) {
+        List<BatchExecResult<R>> partResultList;
+        try {
+            partResultList = apply(bucket, new ArrayList<>(taskList.subList(from, to)));
+        } catch (Throwable e) {
+            bisect(bucket, taskList, from, to, e, resultList);
+            return;
+        }
+        for (int i = 0; i < partResultList.size(); i++) {
+            resultList.set(from + i, partResultList.get(i));
+        }
+    }
+
+    private BatchExecResult<R> applyOne(AsyncBucket<T, R> bucket, T task) {
+        try {
+            return apply(bucket, Collections.singletonList(task)).get(0);
+        } catch (Throwable e) {
+            return new BatchExecResult<>(e);
+        }
+    }
+
+    /**
+     * 设置预聚合，为null时不做预聚合。合并函数收到的是合并以后的任务，返回的结果按合并以后的任务一一对应
+     */
+    public void setCombiner(Combiner<T> combiner) {
+        this.combiner = combiner;
+    }
+
+    private void complete(CompletableFuture<R> future, BatchExecResult<R> result) {
+        if (result == null) {
+            future.complete(null);
+        } else if (result.isSuccess()) {
+            future.complete(result.getResult());
+        } else {
+            future.completeExceptionally(result.getExp());
+        }
+    }
+
+    /**
+     * 一个key执行中的批次数以及排队的flush，只在inFlightMap的compute中读写
+     */
+    private static class InFlight {
+
+        private int count;
+
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    }
+
+    /**
+     * 同步等待future，异常的处理方式和同步合并执行保持一致
+     */
+    public static <R> R join(CompletableFuture<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+}
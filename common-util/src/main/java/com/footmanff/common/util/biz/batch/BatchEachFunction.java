@@ -0,0 +1,59 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 按任务返回结果的合并函数，返回的结果列表和{@link BatchExecParam#getTaskList()}按下标一一对应，
+ * 执行器把每个结果（或者异常）交给提交对应任务的调用方
+ */
+@FunctionalInterface
+public interface BatchEachFunction<T, R> {
+
+    List<BatchExecResult<R>> apply(BatchExecParam<T> param);
+
+    /**
+     * 所有任务共享同一个结果。合并函数的异常直接抛出，由执行器决定整批失败还是拆分批次隔离失败的任务
+     */
+    static <T, R> BatchEachFunction<T, R> of(Function<BatchExecParam<T>, R> bachFunc) {
+        return param -> Collections.nCopies(param.getTaskList().size(), new BatchExecResult<>(bachFunc.apply(param)));
+    }
+
+    /**
+     * 合并函数返回和taskList按下标对应的结果列表
+     */
+    static <T, R> BatchEachFunction<T, R> ofList(Function<BatchExecParam<T>, List<R>> bachFunc) {
+        return param -> {
+            List<R> resultList = bachFunc.apply(param);
+            if (resultList == null) {
+                throw new IllegalStateException("合并函数返回的结果列表为null");
+            }
+            List<BatchExecResult<R>> list = new ArrayList<>(resultList.size());
+            for (R r : resultList) {
+                list.add(new BatchExecResult<>(r));
+            }
+            return list;
+        };
+    }
+
+    /**
+     * 合并函数返回任务到结果的映射，map中不存在的任务结果为null
+     */
+    static <T, R> BatchEachFunction<T, R> ofMap(Function<BatchExecParam<T>, Map<T, R>> bachFunc) {
+        return param -> {
+            Map<T, R> resultMap = bachFunc.apply(param);
+            if (resultMap == null) {
+                throw new IllegalStateException("合并函数返回的结果映射为null");
+            }
+            List<BatchExecResult<R>> list = new ArrayList<>(param.getTaskList().size());
+            for (T task : param.getTaskList()) {
+                list.add(new BatchExecResult<>(resultMap.get(task)));
+            }
+            return list;
+        };
+    }
+
+}
@@ -21,4 +21,11 @@ public class BatchExecResult<R> {
     public Throwable getExp() {
         return exp;
     }
+
+    /**
+     * true: 正常执行并拿到结果  false: 异常，exp是异常对象
+     */
+    public boolean isSuccess() {
+        return exp == null;
+    }
 }
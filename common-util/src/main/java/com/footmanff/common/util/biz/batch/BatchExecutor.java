@@ -1,44 +1,72 @@
 package com.footmanff.common.util.biz.batch;
 
-import com.footmanff.common.util.base.Holder;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.concurrent.ExecutionException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 public class BatchExecutor<T, R> {
 
-    private final Cache<String, Bucket<T, R>> loadingCache = CacheBuilder.newBuilder()
-            .maximumSize(10000)
-            .expireAfterWrite(4, TimeUnit.SECONDS)
-            .build();
+    private final BucketRegistry<Bucket<T, R>> registry = new BucketRegistry<>();
 
-    private AtomicLong lockCost = new AtomicLong();
+    private final BucketRegistry.Factory<Bucket<T, R>> bucketFactory = this::newBucket;
 
-    private AtomicLong signalCost = new AtomicLong();
+    private static final long DEFAULT_CLOSE_TIMEOUT = 30000L;
 
-    public AtomicLong getWaitCost() {
-        return waitCost;
+    /**
+     * 异步合并、带超时的调用以及flusher模式使用，第一次使用时创建
+     */
+    private final AtomicReference<BatchDispatcher<T, R>> dispatcher = new AtomicReference<>();
+
+    private final BatchOptions options;
+
+    private final BatchMetrics metrics;
+
+    private volatile Combiner<T> combiner;
+
+    private final boolean flusherMode;
+
+    private final KeySharding sharding;
+
+    private final boolean anchoredWindow;
+
+    public BatchExecutor() {
+        this(new BatchOptions());
     }
 
-    public AtomicLong getSignalCost() {
-        return signalCost;
+    public BatchExecutor(BatchOptions options) {
+        this.metrics = options.getMetrics() == null ? new DefaultBatchMetrics() : options.getMetrics();
+        this.options = options;
+        this.flusherMode = options.isFlusherMode();
+        this.sharding = options.getShardCount() == null ? null : new KeySharding(options.getShardCount());
+        this.anchoredWindow = options.isAnchoredWindow();
     }
 
-    private AtomicLong waitCost = new AtomicLong();
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
 
-    public AtomicLong getLockCost() {
-        return lockCost;
+    /**
+     * 设置批处理前的预聚合，为null时不做预聚合。同步合并时所有调用方共享合并函数的结果；
+     * 异步合并、flusher模式下合并以后任务的结果交给参与合并的每一个调用方
+     */
+    public void setCombiner(Combiner<T> combiner) {
+        this.combiner = combiner;
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            d.setCombiner(combiner);
+        }
     }
 
     /**
      * 根据key去做合并执行，按照时间窗口合并，或者达到任务限制数触发合并
+     * <p/>
+     * flusher模式下调用方只负责放入任务，窗口到期、达到batchLimit提前执行都由flusher线程负责
      *
      * @param key        执行批次唯一键
      * @param param      当前执行参数
@@ -48,39 +76,50 @@ public class BatchExecutor<T, R> {
      * @return 合并以后的结果
      */
     public R execute(String key, T param, long maxTime, int batchLimit, Function<BatchExecParam<T>, R> bachFunc) {
+        if (flusherMode) {
+            return BatchDispatcher.join(dispatcher().submit(key, param, maxTime, batchLimit, bachFunc));
+        }
+        long start = System.nanoTime();
         long timeWin = System.currentTimeMillis() / maxTime;
-        String cacheKey = key + "_" + timeWin;
 
-        Result result = acquireAndLockBucket(key, cacheKey);
+        // 热点key拆分到多个槽位，各槽位独立开窗并行执行
+        Object slotKey = sharding == null ? key : sharding.select(key);
+        Result result = acquireAndLockBucket(key, slotKey, timeWin, maxTime, param);
 
         ReentrantLock lock = result.getLock();
         Condition condition = result.getCondition();
         Bucket<T, R> bucket = result.getBucket();
+        BucketRegistry.Window<Bucket<T, R>> window = result.getWindow();
         boolean isMain = result.isMain();
 
         try {
-            bucket.addTask(param);
             if (isMain) {
-                // 第一个进入的key，仅等待一个时间窗口
+                // 第一个进入的key，仅等待一个时间窗口；自己的任务没有加入时bucket已经被填满，不再等待
                 try {
-                    // System.out.println("「主线程」开始沉睡");
-                    boolean timeout = condition.await(maxTime, TimeUnit.MILLISECONDS);
-                    if (timeout) {
-                        // System.out.println("超时");
-                    } else {
-                        // System.out.println("「主线程」被唤醒");
-                    }
+                    // 在窗口到期前被唤醒，代表达到batchLimit提前执行
+                    boolean signalled = !result.isTaskAdded() || condition.await(maxTime, TimeUnit.MILLISECONDS);
+                    metrics.recordFlush(signalled);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
                 bucket.setMainThreadSignal(true);
-                loadingCache.invalidate(cacheKey);
-                bucket.setInvalidated(true);
+                window.remove(0, bucket);
+                // 锚定窗口下后续请求从自己的到达时间开始新的窗口
+                window.close();
+                // 和子线程加入bucket互斥，之后任务列表、子线程列表都不会再变化
+                bucket.invalidate();
 
-                // 开始批处理
-                BatchExecParam<T> batchExecParam = new BatchExecParam<>(key, bucket.getTaskList(), cacheKey);
+                // 开始批处理，cacheKey只在批处理时拼接一次
+                String cacheKey = slotKey + "_" + window.getWindow();
+                bucket.setCacheKey(cacheKey);
+                List<T> taskList = bucket.getTaskList();
+                Combiner<T> combiner = this.combiner;
+                BatchExecParam<T> batchExecParam = new BatchExecParam<>(key,
+                        combiner == null ? taskList : Combiner.combineAll(combiner, taskList, null), cacheKey);
                 batchExecParam.setBucketId(bucket.getId());
+                long s = System.nanoTime();
                 BatchExecResult<R> batchExecResult = exec(bachFunc, batchExecParam);
+                metrics.recordBatch(key, taskList.size(), System.nanoTime() - s);
                 setBucketResult(bucket, batchExecResult);
 
                 // 唤醒后续等待的线程
@@ -92,99 +131,173 @@ public class BatchExecutor<T, R> {
                         pair.getLeft().unlock();
                     }
                 }
-                return getResult(bucket);
+                if (result.isTaskAdded()) {
+                    metrics.recordWait(System.nanoTime() - start);
+                    return getResult(bucket);
+                }
+                // 这一批不包含主线程自己的任务，释放锁以后重新提交
             } else {
                 // 子线程超过一定数量，唤醒主线程
-                if (bucket.getTaskList().size() >= batchLimit && !bucket.isMainThreadSignal()) {
-                    // 尝试提前唤醒主线程
-                    while (true) {
-                        if (bucket.isMainThreadSignal()) {
-                            break;
-                        }
-                        boolean locked = bucket.getLock().tryLock();
-                        if (!locked) {
-                            continue;
-                        }
-                        try {
-                            bucket.getMainThreadCondition().signal();
-                        } catch (IllegalMonitorStateException e) {
-                            throw new RuntimeException(e);
-                        } finally {
-                            bucket.getLock().unlock();
-                        }
-                        bucket.setMainThreadSignal(true);
-                        break;
-                    }
-                    // System.out.println("唤醒主线程");
-                    // System.out.println("超过batchLimit: " + bucket.getId());
+                if (bucket.size() >= batchLimit) {
+                    signalMainThread(bucket);
                 }
-                bucket.addSubThreadCondition(Pair.of(lock, condition));
                 // 后续进入的key，等待第一个进入的线程唤醒
                 try {
-                    long s = System.nanoTime();
                     condition.await();
-                    waitCost.addAndGet(System.nanoTime() - s);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
+                metrics.recordWait(System.nanoTime() - start);
                 // 被主线程唤醒，主线程完成了批处理，从bucket中拿结果返回
                 return getResult(bucket);
             }
         } finally {
             lock.unlock();
         }
+        return execute(key, param, maxTime, batchLimit, bachFunc);
     }
 
-    private Result acquireAndLockBucket(String key, String cacheKey) {
+    /**
+     * 合并执行，最多等待timeout。合并由flusher线程负责，超时或者被中断时还没有开始批处理的任务会被撤回，不再执行
+     * <p/>
+     * 主线程模式下，带超时的调用和不带超时的调用各自合并：主线程、子线程的等待没有超时，等待中的子线程也无法从bucket撤回，
+     * 因此带超时的调用不进入主线程模式的bucket。flusher模式下两者进入同一个bucket
+     *
+     * @param key        执行批次唯一键
+     * @param param      当前执行参数
+     * @param maxTime    bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param batchLimit 一个批次最大合并任务数
+     * @param timeout    最长等待时间，包含窗口等待和批处理耗时
+     * @param unit       timeout的单位
+     * @param bachFunc   合并多个任务函数
+     * @return 合并以后的结果
+     * @throws RuntimeException 超时时cause为{@link java.util.concurrent.TimeoutException}
+     */
+    public R execute(String key, T param, long maxTime, int batchLimit, long timeout, TimeUnit unit,
+                     Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submitAndWait(key, param, maxTime, batchLimit, bachFunc, timeout, unit);
+    }
+
+    /**
+     * 异步合并执行，立即返回future，不阻塞调用线程。bucket在maxTime到期或者达到batchLimit时由flusher线程执行批处理并完成future
+     *
+     * @param key        执行批次唯一键
+     * @param param      当前执行参数
+     * @param maxTime    bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param batchLimit 一个批次最大合并任务数
+     * @param bachFunc   合并多个任务函数
+     * @return 合并以后的结果，批处理异常时future异常完成
+     */
+    public CompletableFuture<R> executeAsync(String key, T param, long maxTime, int batchLimit, Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submit(key, param, maxTime, batchLimit, bachFunc);
+    }
+
+    /**
+     * 异步合并执行，每个任务拿到自己的结果
+     *
+     * @param key        执行批次唯一键
+     * @param param      当前执行参数
+     * @param maxTime    bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param batchLimit 一个批次最大合并任务数
+     * @param bachFunc   按任务返回结果的合并函数
+     * @return 当前任务的结果，当前任务异常时future异常完成
+     */
+    public CompletableFuture<R> executeEachAsync(String key, T param, long maxTime, int batchLimit, BatchEachFunction<T, R> bachFunc) {
+        return dispatcher().submitEach(key, param, maxTime, batchLimit, bachFunc);
+    }
+
+    /**
+     * 合并执行，阻塞等待当前任务自己的结果
+     *
+     * @see #executeEachAsync(String, Object, long, int, BatchEachFunction)
+     */
+    public R executeEach(String key, T param, long maxTime, int batchLimit, BatchEachFunction<T, R> bachFunc) {
+        return BatchDispatcher.join(executeEachAsync(key, param, maxTime, batchLimit, bachFunc));
+    }
+
+    private Result acquireAndLockBucket(String key, Object slotKey, long timeWin, long maxTime, T param) {
         // 高并发情况下，容易饿死，一直抢不到可用的bucket
         while (true) {
-            Holder<Boolean> isMain = Holder.of(Boolean.FALSE);
-            Bucket<T, R> bucket;
-            try {
-                bucket = loadingCache.get(cacheKey, () -> {
-                    ReentrantLock lock = new ReentrantLock(false);
-                    Bucket<T, R> b = new Bucket<>();
-                    b.setKey(key);
-                    b.setCacheKey(cacheKey);
-                    b.setMainThreadCondition(lock.newCondition());
-                    b.setLock(lock);
-                    isMain.set(Boolean.TRUE);
-                    return b;
-                });
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
-            }
+            // 同一个时间窗口只有一个可用的bucket，批次号固定为0，bucket执行以后从注册表移除
+            BucketRegistry.Window<Bucket<T, R>> window = anchoredWindow
+                    ? registry.anchoredWindow(slotKey, TimeUnit.MILLISECONDS.toNanos(maxTime))
+                    : registry.window(slotKey, timeWin);
+            Bucket<T, R> bucket = window.computeIfAbsent(key, 0, bucketFactory);
+            boolean isMain = bucket.getMainThread() == Thread.currentThread();
             if (bucket.isInvalidated()) {
-                // System.out.println("重新acquire " + bucket.getId() + " " + Thread.currentThread().getName());
+                metrics.recordReacquire();
                 continue;
             }
             ReentrantLock lock;
             Condition condition;
-            if (isMain.get()) {
+            if (isMain) {
                 lock = bucket.getLock();
                 condition = bucket.getMainThreadCondition();
             } else {
                 lock = new ReentrantLock(false);
                 condition = lock.newCondition();
             }
-            long s = System.nanoTime();
             lock.lock();
-            lockCost.addAndGet(System.nanoTime() - s);
-            if (bucket.isInvalidated()) {
-                // bucket已经执行结束，代表已经合并过，并且不再接受新的任务，需要重新向缓存拿bucket
+            boolean joined;
+            if (isMain) {
+                // 主线程加入前bucket已经被子线程填满时仍然由主线程执行这一批，自己的任务之后重新提交
+                joined = bucket.addTask(param);
+            } else {
+                joined = bucket.join(param, Pair.of(lock, condition));
+            }
+            if (!joined && !isMain) {
                 lock.unlock();
-                // System.out.println("重新acquireAndLockBucket " + bucket.getId() + " " + Thread.currentThread().getName());
+                if (!bucket.isInvalidated()) {
+                    // 任务数达到累积上限，主线程还在等待窗口：移出注册表让后续请求创建新的bucket，并提前唤醒主线程，
+                    // 否则子线程会一直拿到这个bucket
+                    window.remove(0, bucket);
+                    signalMainThread(bucket);
+                }
+                // bucket已经执行结束，代表已经合并过，并且不再接受新的任务，需要重新向缓存拿bucket
+                metrics.recordReacquire();
                 continue;
             }
             Result result = new Result();
             result.setBucket(bucket);
-            result.setMain(isMain.get());
+            result.setWindow(window);
+            result.setMain(isMain);
+            result.setTaskAdded(joined);
             result.setCondition(condition);
             result.setLock(lock);
             return result;
         }
     }
 
+    /**
+     * 提前唤醒主线程，已经唤醒过时不处理
+     */
+    private void signalMainThread(Bucket<T, R> bucket) {
+        while (!bucket.isMainThreadSignal()) {
+            if (!bucket.getLock().tryLock()) {
+                continue;
+            }
+            try {
+                bucket.getMainThreadCondition().signal();
+            } finally {
+                bucket.getLock().unlock();
+            }
+            bucket.setMainThreadSignal(true);
+        }
+    }
+
+    /**
+     * 创建bucket的线程作为主线程
+     */
+    private Bucket<T, R> newBucket(String key, long window, long batch) {
+        ReentrantLock lock = new ReentrantLock(false);
+        Bucket<T, R> b = new Bucket<>();
+        b.setKey(key);
+        b.setMainThread(Thread.currentThread());
+        b.setMainThreadCondition(lock.newCondition());
+        b.setLock(lock);
+        return b;
+    }
+
     private BatchExecResult<R> exec(Function<BatchExecParam<T>, R> bachFunc, BatchExecParam<T> batchExecParam) {
         try {
             R result = bachFunc.apply(batchExecParam);
@@ -210,9 +323,50 @@ public class BatchExecutor<T, R> {
         }
     }
 
+    /**
+     * 关闭异步合并使用的flusher线程，最多等待30秒让执行中的批处理完成
+     *
+     * @see #close(long, TimeUnit)
+     */
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭异步合并、带超时的调用以及flusher模式使用的flusher线程，见{@link BatchDispatcher#shutdown()}：
+     * 还没有开始批处理的任务异常完成，之后的这些调用直接失败。主线程模式的同步调用不受影响
+     *
+     * @return false: 超时时仍有批处理在执行
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        BatchDispatcher<T, R> d = dispatcher();
+        d.shutdown();
+        return d.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 只使用主线程模式时不创建flusher线程池。并发创建时只有一个生效，其余的还没有启动过线程，直接丢弃
+     */
+    private BatchDispatcher<T, R> dispatcher() {
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            return d;
+        }
+        BatchDispatcher<T, R> created = new BatchDispatcher<>("BatchExecutor-flusher-", options, metrics);
+        created.setCombiner(combiner);
+        if (!dispatcher.compareAndSet(null, created)) {
+            return dispatcher.get();
+        }
+        // 创建期间设置的combiner可能没有传给新的dispatcher
+        created.setCombiner(combiner);
+        return created;
+    }
+
     private class Result {
         private Bucket<T, R> bucket;
+        private BucketRegistry.Window<Bucket<T, R>> window;
         private boolean main;
+        private boolean taskAdded;
         private Condition condition;
         private ReentrantLock lock;
 
@@ -224,6 +378,14 @@ public class BatchExecutor<T, R> {
             this.bucket = bucket;
         }
 
+        public BucketRegistry.Window<Bucket<T, R>> getWindow() {
+            return window;
+        }
+
+        public void setWindow(BucketRegistry.Window<Bucket<T, R>> window) {
+            this.window = window;
+        }
+
         public boolean isMain() {
             return main;
         }
@@ -232,6 +394,14 @@ public class BatchExecutor<T, R> {
             this.main = main;
         }
 
+        public boolean isTaskAdded() {
+            return taskAdded;
+        }
+
+        public void setTaskAdded(boolean taskAdded) {
+            this.taskAdded = taskAdded;
+        }
+
         public Condition getCondition() {
             return condition;
         }
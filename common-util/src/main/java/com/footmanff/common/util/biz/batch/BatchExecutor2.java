@@ -1,60 +1,227 @@
 package com.footmanff.common.util.biz.batch;
 
-import com.footmanff.common.util.base.Holder;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import lombok.Data;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 public class BatchExecutor2<T, R> {
 
-    private final Cache<String, Bucket2<T, R>> loadingCache = CacheBuilder.newBuilder()
-            .maximumSize(10000)
-            .expireAfterWrite(4, TimeUnit.SECONDS)
-            .build();
+    private final BucketRegistry<Bucket2<T, R>> registry = new BucketRegistry<>();
 
-    private final Map<String, AtomicLong> seqMap = new ConcurrentHashMap<>();
+    private final BucketRegistry.Factory<Bucket2<T, R>> bucketFactory = this::newBucket;
 
     private final int batchLimit;
 
     private final long maxTime;
 
+    private static final long DEFAULT_CLOSE_TIMEOUT = 30000L;
+
+    /**
+     * 异步合并、带超时的调用以及flusher模式使用，第一次使用时创建
+     */
+    private final AtomicReference<BatchDispatcher<T, R>> dispatcher = new AtomicReference<>();
+
+    private final BatchOptions options;
+
+    private final BatchMetrics metrics;
+
+    private volatile Combiner<T> combiner;
+
+    private final boolean flusherMode;
+
+    private final AdaptiveBatchPolicy adaptivePolicy;
+
+    private final KeySharding sharding;
+
+    private final boolean selfFlush;
+
+    private final boolean anchoredWindow;
+
+    /**
+     * 一个时间窗口内按序号划分批次的大小，自适应模式下为批次大小上限
+     */
+    private final int partition;
+
     public BatchExecutor2(int batchLimit, long maxTime) {
+        this(batchLimit, maxTime, new BatchOptions());
+    }
+
+    public BatchExecutor2(int batchLimit, long maxTime, BatchOptions options) {
         this.batchLimit = batchLimit;
         this.maxTime = maxTime;
+        this.adaptivePolicy = options.getAdaptivePolicy();
+        if (adaptivePolicy != null && adaptivePolicy.getMaxBatchLimit() < batchLimit) {
+            throw new IllegalArgumentException("maxBatchLimit不得小于batchLimit");
+        }
+        this.partition = adaptivePolicy == null ? batchLimit : adaptivePolicy.getMaxBatchLimit();
+        this.metrics = options.getMetrics() == null ? new DefaultBatchMetrics() : options.getMetrics();
+        this.options = options;
+        this.flusherMode = options.isFlusherMode();
+        this.sharding = options.getShardCount() == null ? null : new KeySharding(options.getShardCount());
+        this.selfFlush = options.isSelfFlush();
+        this.anchoredWindow = options.isAnchoredWindow();
     }
 
+    /**
+     * 合并执行，阻塞等待批处理结果。flusher模式下窗口到期、批处理执行都由flusher线程负责
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果
+     */
     public R execute(String key, T task, Function<BatchExecParam<T>, R> bachFunc) {
-        AcquireBucketResult<T, R> acquireBucketResult = acquireBucket(key, task);
+        if (flusherMode) {
+            return BatchDispatcher.join(dispatcher().submit(key, task, maxTime, batchLimit, bachFunc));
+        }
+        long start = System.nanoTime();
+        AdaptiveBatchPolicy.KeyStat stat = null;
+        int limit = batchLimit;
+        if (adaptivePolicy != null) {
+            stat = adaptivePolicy.stat(key);
+            stat.onArrival();
+            limit = stat.batchLimit(batchLimit);
+        }
+
+        // 热点key拆分到多个槽位，各槽位独立开窗并行执行
+        Object slotKey = sharding == null ? key : sharding.select(key);
+        AcquireBucketResult<T, R> acquireBucketResult = acquireBucket(key, slotKey, task, limit);
         Bucket2<T, R> bucket2 = acquireBucketResult.getBucket2();
         boolean isMain = acquireBucketResult.isMain();
 
         if (isMain) {
+            boolean filled = acquireBucketResult.isFilled();
+            long waitNanos = filled ? 0L
+                    : stat == null ? TimeUnit.MILLISECONDS.toNanos(maxTime) : stat.waitNanos(maxTime, limit);
+            boolean early;
             try {
-                bucket2.getMainCondition().await(maxTime, TimeUnit.MILLISECONDS);
+                // 在窗口到期前被唤醒，代表达到批次大小提前执行
+                early = waitNanos <= 0 || bucket2.getMainCondition().awaitNanos(waitNanos) > 0;
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             } finally {
                 bucket2.getMainLock().unlock();
             }
-
-            // 开始批处理
-            bucket2.processTask(key, bachFunc);
+            if (!flush(key, slotKey, acquireBucketResult.getWindow(), bucket2, stat, early, bachFunc)) {
+                // 填满bucket的子线程已经执行了批处理
+                bucket2.awaitFinished();
+            }
+            metrics.recordWait(System.nanoTime() - start);
+            return getResult(bucket2);
+        } else if (acquireBucketResult.isFilled()) {
+            // 填满bucket的线程直接执行批处理，主线程窗口先到期时由主线程执行
+            if (!flush(key, slotKey, acquireBucketResult.getWindow(), bucket2, stat, true, bachFunc)) {
+                bucket2.awaitFinished();
+            }
+            metrics.recordWait(System.nanoTime() - start);
             return getResult(bucket2);
         } else {
+            if (selfFlush) {
+                // 加入时没有等待
+                bucket2.awaitFinished();
+            }
             // 被主线程唤醒，主线程完成了批处理，从bucket中拿结果返回
+            metrics.recordWait(System.nanoTime() - start);
             return getResult(bucket2);
         }
     }
 
+    /**
+     * 合并执行，最多等待timeout。合并由flusher线程负责，超时或者被中断时还没有开始批处理的任务会被撤回，不再执行
+     * <p/>
+     * 主线程模式下，带超时的调用和不带超时的调用各自合并：主线程、子线程的等待没有超时，等待中的子线程也无法从bucket撤回，
+     * 因此带超时的调用不进入主线程模式的bucket。flusher模式下两者进入同一个bucket
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param timeout  最长等待时间，包含窗口等待和批处理耗时
+     * @param unit     timeout的单位
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果
+     * @throws RuntimeException 超时时cause为{@link java.util.concurrent.TimeoutException}
+     */
+    public R execute(String key, T task, long timeout, TimeUnit unit, Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submitAndWait(key, task, maxTime, batchLimit, bachFunc, timeout, unit);
+    }
+
+    /**
+     * 异步合并执行，立即返回future，不阻塞调用线程。bucket在maxTime到期或者达到batchLimit时由flusher线程执行批处理并完成future
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果，批处理异常时future异常完成
+     */
+    public CompletableFuture<R> executeAsync(String key, T task, Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submit(key, task, maxTime, batchLimit, bachFunc);
+    }
+
+    /**
+     * 异步合并执行，每个任务拿到自己的结果
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 按任务返回结果的合并函数
+     * @return 当前任务的结果，当前任务异常时future异常完成
+     */
+    public CompletableFuture<R> executeEachAsync(String key, T task, BatchEachFunction<T, R> bachFunc) {
+        return dispatcher().submitEach(key, task, maxTime, batchLimit, bachFunc);
+    }
+
+    /**
+     * 合并执行，阻塞等待当前任务自己的结果
+     *
+     * @see #executeEachAsync(String, Object, BatchEachFunction)
+     */
+    public R executeEach(String key, T task, BatchEachFunction<T, R> bachFunc) {
+        return BatchDispatcher.join(executeEachAsync(key, task, bachFunc));
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置批处理前的预聚合，为null时不做预聚合。同步合并时所有调用方共享合并函数的结果；
+     * 异步合并、flusher模式下合并以后任务的结果交给参与合并的每一个调用方
+     */
+    public void setCombiner(Combiner<T> combiner) {
+        this.combiner = combiner;
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            d.setCombiner(combiner);
+        }
+    }
+
+    /**
+     * 封闭bucket并执行批处理
+     *
+     * @return false: bucket已经被其他线程封闭
+     */
+    private boolean flush(String key, Object slotKey, BucketRegistry.Window<Bucket2<T, R>> window, Bucket2<T, R> bucket2,
+                          AdaptiveBatchPolicy.KeyStat stat, boolean early, Function<BatchExecParam<T>, R> bachFunc) {
+        // 后续请求直接进入下一个批次，不再尝试加入当前bucket；锚定窗口下后续请求从自己的到达时间开始新的窗口
+        window.skipTo((bucket2.getBatchNum() + 1) * partition);
+        window.close();
+
+        long s = System.nanoTime();
+        if (!bucket2.processTask(key, slotKey + "_" + bucket2.getWindow() + "_" + bucket2.getBatchNum(), combiner, bachFunc)) {
+            return false;
+        }
+        long cost = System.nanoTime() - s;
+        if (stat != null) {
+            stat.onBatch(cost);
+        }
+        metrics.recordFlush(early);
+        metrics.recordBatch(key, bucket2.getSealedSize(), cost);
+        return true;
+    }
+
     private R getResult(Bucket2<T, R> bucket) {
         if (bucket.getResult() != null) {
             return bucket.getResult();
@@ -63,11 +230,12 @@ public class BatchExecutor2<T, R> {
         }
     }
 
-    private AcquireBucketResult<T, R> acquireBucket(String key, T task) {
-        AcquireBucketResult<T, R> acquireBucketResult = acquireBucketInner(key, task);
+    private AcquireBucketResult<T, R> acquireBucket(String key, Object slotKey, T task, int limit) {
+        AcquireBucketResult<T, R> acquireBucketResult = acquireBucketInner(key, slotKey, task, limit);
 
         while (!acquireBucketResult.isBucketInitSuccess()) {
-            acquireBucketResult = acquireBucketInner(key, task);
+            metrics.recordReacquire();
+            acquireBucketResult = acquireBucketInner(key, slotKey, task, limit);
         }
 
         return acquireBucketResult;
@@ -80,46 +248,48 @@ public class BatchExecutor2<T, R> {
      * <p/>
      * bucket初始化、bucket的批处理，可能会并发执行，因此需要对这两个操作加锁控制
      *
-     * @param key  任务key
-     * @param task 任务
+     * @param key     任务key
+     * @param slotKey 注册表槽位，未分片时即任务key
+     * @param task    任务
+     * @param limit   当前批次大小，达到以后提前唤醒主线程
      * @return bucket获取结果
      */
-    private AcquireBucketResult<T, R> acquireBucketInner(String key, T task) {
-        long time = System.currentTimeMillis();
-        long timeWin = time / maxTime;
-        String seqKey = key + "_" + timeWin;
-
-        AtomicLong seq = seqMap.computeIfAbsent(seqKey, k -> new AtomicLong());
-        long num = seq.incrementAndGet();
-        long batchNum = num / batchLimit;
+    private AcquireBucketResult<T, R> acquireBucketInner(String key, Object slotKey, T task, int limit) {
+        BucketRegistry.Window<Bucket2<T, R>> window = anchoredWindow
+                ? registry.anchoredWindow(slotKey, TimeUnit.MILLISECONDS.toNanos(maxTime))
+                : registry.window(slotKey, System.currentTimeMillis() / maxTime);
+        long num = window.nextSeq();
+        long batchNum = num / partition;
 
         // 是否跨越了一个批次
-        boolean isLastNum = num % batchLimit == batchLimit - 1;
-
-        String cacheKey = seqKey + "_" + batchNum;
-
-        Holder<Boolean> isMainHolder = Holder.of(false);
-        Bucket2<T, R> bucket2;
-        try {
-            bucket2 = loadingCache.get(cacheKey, () -> {
-                Bucket2<T, R> b = new Bucket2<>();
-                isMainHolder.set(Boolean.TRUE);
-                b.getMainLock().lock();
-                return b;
-            });
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+        boolean isLastNum = num % partition == limit - 1;
+
+        Bucket2<T, R> bucket2 = window.computeIfAbsent(key, batchNum, bucketFactory);
+        boolean isMain = bucket2.getMainThread() == Thread.currentThread();
+        boolean initSuccess;
+        boolean filled = false;
+        if (selfFlush) {
+            // 只加入不等待，按实际加入的任务数判断是否填满，保证序号在当前批次的任务都已经加入
+            int size = bucket2.add(task);
+            initSuccess = size > 0;
+            filled = size >= limit;
+        } else {
+            initSuccess = bucket2.init(task, isLastNum, isMain);
+        }
+        if (!initSuccess && isMain) {
+            // 主线程加入任务之前bucket已经被填满bucket的线程封闭，放开创建时持有的主锁，重新获取bucket
+            bucket2.getMainLock().unlock();
         }
-        boolean isMain = isMainHolder.get();
-        boolean initSuccess = bucket2.init(task, isLastNum, isMain);
 
         // 当前使用的锁，isMain代表首次进入的请求，非首次进入的请求都作为子锁
-        ReentrantLock currentLock = isMainHolder.get() ? bucket2.getMainLock() : bucket2.getSubLock();
-        Condition currentCondition = isMainHolder.get() ? bucket2.getMainCondition() : bucket2.getSubCondition();
+        ReentrantLock currentLock = isMain ? bucket2.getMainLock() : bucket2.getSubLock();
+        Condition currentCondition = isMain ? bucket2.getMainCondition() : bucket2.getSubCondition();
 
         AcquireBucketResult<T, R> result = new AcquireBucketResult<>();
         result.setBucket2(bucket2);
+        result.setWindow(window);
         result.setLastNum(isLastNum);
+        result.setFilled(filled);
         result.setMain(isMain);
         result.setCurrentLock(currentLock);
         result.setCurrentCondition(currentCondition);
@@ -127,11 +297,64 @@ public class BatchExecutor2<T, R> {
         return result;
     }
 
+    /**
+     * 创建bucket的线程作为主线程，创建时即持有主锁
+     */
+    private Bucket2<T, R> newBucket(String key, long window, long batch) {
+        Bucket2<T, R> b = new Bucket2<>();
+        b.setWindow(window);
+        b.setBatchNum(batch);
+        b.setMainThread(Thread.currentThread());
+        b.getMainLock().lock();
+        return b;
+    }
+
+    /**
+     * 关闭异步合并使用的flusher线程，最多等待30秒让执行中的批处理完成
+     *
+     * @see #close(long, TimeUnit)
+     */
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭异步合并、带超时的调用以及flusher模式使用的flusher线程，见{@link BatchDispatcher#shutdown()}：
+     * 还没有开始批处理的任务异常完成，之后的这些调用直接失败。主线程模式的同步调用不受影响
+     *
+     * @return false: 超时时仍有批处理在执行
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        BatchDispatcher<T, R> d = dispatcher();
+        d.shutdown();
+        return d.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 只使用主线程模式时不创建flusher线程池。并发创建时只有一个生效，其余的还没有启动过线程，直接丢弃
+     */
+    private BatchDispatcher<T, R> dispatcher() {
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            return d;
+        }
+        BatchDispatcher<T, R> created = new BatchDispatcher<>("BatchExecutor2-flusher-", options, metrics);
+        created.setCombiner(combiner);
+        if (!dispatcher.compareAndSet(null, created)) {
+            return dispatcher.get();
+        }
+        // 创建期间设置的combiner可能没有传给新的dispatcher
+        created.setCombiner(combiner);
+        return created;
+    }
+
     @Data
     private static class AcquireBucketResult<T, R> {
         private Bucket2<T, R> bucket2;
+        private BucketRegistry.Window<Bucket2<T, R>> window;
         private boolean bucketInitSuccess;
         private boolean lastNum;
+        private boolean filled;
         private boolean main;
         private ReentrantLock currentLock;
         private Condition currentCondition;
@@ -1,12 +1,9 @@
 package com.footmanff.common.util.biz.batch;
 
-import com.footmanff.common.util.base.Holder;
-
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
@@ -15,80 +12,256 @@ import java.util.function.Function;
  */
 public class BatchExecutor3<T, R> {
 
-    private final Map<String, AtomicLong> seqMap = new ConcurrentHashMap<>();
+    private final BucketRegistry<Bucket3<T, R>> registry = new BucketRegistry<>();
 
-    private final Map<String, Bucket3<T, R>> cache2 = new ConcurrentHashMap<>();
+    private final BucketRegistry.Factory<Bucket3<T, R>> bucketFactory = this::newBucket;
 
     private final int batchLimit;
 
     private final long maxTime;
 
+    private static final long DEFAULT_CLOSE_TIMEOUT = 30000L;
+
+    /**
+     * 异步合并、带超时的调用以及flusher模式使用，第一次使用时创建
+     */
+    private final AtomicReference<BatchDispatcher<T, R>> dispatcher = new AtomicReference<>();
+
+    private final BatchOptions options;
+
+    private final BatchMetrics metrics;
+
+    private volatile Combiner<T> combiner;
+
+    private final boolean flusherMode;
+
+    private final AdaptiveBatchPolicy adaptivePolicy;
+
+    private final KeySharding sharding;
+
+    private final boolean selfFlush;
+
+    private final boolean anchoredWindow;
+
+    /**
+     * 一个时间窗口内按序号划分批次的大小，自适应模式下为批次大小上限
+     */
+    private final int partition;
+
     public BatchExecutor3(int batchLimit, long maxTime) {
+        this(batchLimit, maxTime, new BatchOptions());
+    }
+
+    public BatchExecutor3(int batchLimit, long maxTime, BatchOptions options) {
         this.batchLimit = batchLimit;
         this.maxTime = maxTime;
+        this.adaptivePolicy = options.getAdaptivePolicy();
+        if (adaptivePolicy != null && adaptivePolicy.getMaxBatchLimit() < batchLimit) {
+            throw new IllegalArgumentException("maxBatchLimit不得小于batchLimit");
+        }
+        this.partition = adaptivePolicy == null ? batchLimit : adaptivePolicy.getMaxBatchLimit();
+        this.metrics = options.getMetrics() == null ? new DefaultBatchMetrics() : options.getMetrics();
+        this.options = options;
+        this.flusherMode = options.isFlusherMode();
+        this.sharding = options.getShardCount() == null ? null : new KeySharding(options.getShardCount());
+        this.selfFlush = options.isSelfFlush();
+        this.anchoredWindow = options.isAnchoredWindow();
     }
 
+    /**
+     * 合并执行，阻塞等待批处理结果
+     * <p/>
+     * 默认第一个进入bucket的线程作为主线程等待窗口并执行批处理；flusher模式下调用方只负责放入任务，
+     * 窗口到期、达到batchLimit提前执行都由flusher线程负责，每个调用方的等待时间都不超过maxTime加上批处理耗时
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果
+     */
     public R execute(String key, T task, Function<BatchExecParam<T>, R> bachFunc) {
-        long time = System.currentTimeMillis();
-        long timeWin = time / maxTime;
-        String seqKey = key + "_" + timeWin;
-
-        AtomicLong seq = seqMap.computeIfAbsent(seqKey, k -> new AtomicLong());
-
-        long num = seq.incrementAndGet();
-        long batchNum = num / batchLimit;
+        if (flusherMode) {
+            return BatchDispatcher.join(dispatcher().submit(key, task, maxTime, batchLimit, bachFunc));
+        }
+        long start = System.nanoTime();
+        AdaptiveBatchPolicy.KeyStat stat = null;
+        int limit = batchLimit;
+        if (adaptivePolicy != null) {
+            stat = adaptivePolicy.stat(key);
+            stat.onArrival();
+            limit = stat.batchLimit(batchLimit);
+        }
+        // 分片以后每个分片有独立的窗口和主线程，并行执行批处理
+        Object slotKey = sharding == null ? key : sharding.select(key);
+        while (true) {
+            BucketRegistry.Window<Bucket3<T, R>> window = anchoredWindow
+                    ? registry.anchoredWindow(slotKey, TimeUnit.MILLISECONDS.toNanos(maxTime))
+                    : registry.window(slotKey, System.currentTimeMillis() / maxTime);
+            long timeWin = window.getWindow();
+            long num = window.nextSeq();
+            long batchNum = num / partition;
 
-        // 是否跨越了一个批次
-        boolean isLastNum = num % batchLimit == batchLimit - 1;
+            // 是否跨越了一个批次
+            boolean isLastNum = num % partition == limit - 1;
 
-        String cacheKey = seqKey + "_" + batchNum;
+            Bucket3<T, R> bucket3 = window.computeIfAbsent(key, batchNum, bucketFactory);
+            boolean isMain = bucket3.getMainThread() == Thread.currentThread();
+            int size = bucket3.offer(task, isMain ? null : Thread.currentThread());
+            if (size < 0) {
+                // bucket已经执行过批处理，不能再加入任务，重新获取
+                metrics.recordReacquire();
+                continue;
+            }
+            // 按实际加入的任务数判断，保证序号在当前批次的任务都已经加入
+            boolean filled = selfFlush && size >= limit;
 
-        Holder<Boolean> isMainHolder = Holder.of(false);
-        Bucket3<T, R> bucket3 = cache2.compute(cacheKey, (k, v) -> {
-            if (v == null) {
-                Bucket3<T, R> b = new Bucket3<>();
-                b.setCacheKey(cacheKey);
-                isMainHolder.set(Boolean.TRUE);
-                b.setMainThread(Thread.currentThread());
-                b.getTaskList().offer(task);
-                return b;
+            if (isMain) {
+                long waitNanos = filled ? 0L
+                        : stat == null ? TimeUnit.MILLISECONDS.toNanos(maxTime) : stat.waitNanos(maxTime, limit);
+                // 线程上可能残留之前的unpark许可，循环等待直到被标记唤醒、批处理已经被其他线程完成或者窗口到期
+                long deadline = System.nanoTime() + waitNanos;
+                long remaining = waitNanos;
+                while (!bucket3.isSignalled() && !bucket3.isFinished() && remaining > 0) {
+                    LockSupport.parkNanos(bucket3, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                flushOrAwait(key, slotKey, timeWin, batchNum, window, bucket3, stat, filled || remaining > 0, bachFunc);
+            } else if (filled) {
+                // 填满bucket的线程直接执行批处理，主线程窗口先到期时由主线程执行
+                flushOrAwait(key, slotKey, timeWin, batchNum, window, bucket3, stat, true, bachFunc);
             } else {
-                v.getSubThreadList().offer(Thread.currentThread());
-                v.getTaskList().offer(task);
-                System.out.println("offerTask " + cacheKey);
-                return v;
+                if (isLastNum && !selfFlush) {
+                    bucket3.setSignalled(true);
+                    LockSupport.unpark(bucket3.getMainThread());
+                }
+                awaitFinished(bucket3);
             }
-        });
-        boolean isMain = isMainHolder.get();
+            metrics.recordWait(System.nanoTime() - start);
+            return getResult(bucket3);
+        }
+    }
 
-        if (isMain) {
-            LockSupport.parkNanos(maxTime * 1000000L);
+    /**
+     * 合并执行，最多等待timeout。合并由flusher线程负责，超时或者被中断时还没有开始批处理的任务会被撤回，不再执行
+     * <p/>
+     * 主线程模式下，带超时的调用和不带超时的调用各自合并：主线程、子线程的等待没有超时，等待中的子线程也无法从bucket撤回，
+     * 因此带超时的调用不进入主线程模式的bucket。flusher模式下两者进入同一个bucket
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param timeout  最长等待时间，包含窗口等待和批处理耗时
+     * @param unit     timeout的单位
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果
+     * @throws RuntimeException 超时时cause为{@link java.util.concurrent.TimeoutException}
+     */
+    public R execute(String key, T task, long timeout, TimeUnit unit, Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submitAndWait(key, task, maxTime, batchLimit, bachFunc, timeout, unit);
+    }
 
-            List<T> taskList = new ArrayList<>();
-            T t;
-            while ((t = bucket3.getTaskList().poll()) != null) {
-                taskList.add(t);
-            }
-            System.out.println("pollTask " + cacheKey + " " + taskList.size());
+    /**
+     * 异步合并执行，立即返回future，不阻塞调用线程。bucket在maxTime到期或者达到batchLimit时由flusher线程执行批处理并完成future
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 合并多个任务函数
+     * @return 合并以后的结果，批处理异常时future异常完成
+     */
+    public CompletableFuture<R> executeAsync(String key, T task, Function<BatchExecParam<T>, R> bachFunc) {
+        return dispatcher().submit(key, task, maxTime, batchLimit, bachFunc);
+    }
 
-            BatchExecParam<T> batchExecParam = new BatchExecParam<>(key, taskList, cacheKey);
-            batchExecParam.setBucketId(bucket3.getId());
-            BatchExecResult<R> batchExecResult = exec(bachFunc, batchExecParam);
-            setBucketResult(bucket3, batchExecResult);
+    /**
+     * 异步合并执行，每个任务拿到自己的结果
+     *
+     * @param key      执行批次唯一键
+     * @param task     当前执行参数
+     * @param bachFunc 按任务返回结果的合并函数
+     * @return 当前任务的结果，当前任务异常时future异常完成
+     */
+    public CompletableFuture<R> executeEachAsync(String key, T task, BatchEachFunction<T, R> bachFunc) {
+        return dispatcher().submitEach(key, task, maxTime, batchLimit, bachFunc);
+    }
 
-            Thread subThread;
-            while ((subThread = bucket3.getSubThreadList().poll()) != null) {
-                LockSupport.unpark(subThread);
-            }
+    /**
+     * 合并执行，阻塞等待当前任务自己的结果
+     *
+     * @see #executeEachAsync(String, Object, BatchEachFunction)
+     */
+    public R executeEach(String key, T task, BatchEachFunction<T, R> bachFunc) {
+        return BatchDispatcher.join(executeEachAsync(key, task, bachFunc));
+    }
 
-            return getResult(bucket3);
-        } else {
-            if (isLastNum) {
-                LockSupport.unpark(bucket3.getMainThread());
-            }
-            LockSupport.park();
+    /**
+     * 创建bucket的线程作为主线程
+     */
+    private Bucket3<T, R> newBucket(String key, long window, long batch) {
+        Bucket3<T, R> b = new Bucket3<>();
+        b.setMainThread(Thread.currentThread());
+        return b;
+    }
 
-            return getResult(bucket3);
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置批处理前的预聚合，为null时不做预聚合。同步合并时所有调用方共享合并函数的结果；
+     * 异步合并、flusher模式下合并以后任务的结果交给参与合并的每一个调用方
+     */
+    public void setCombiner(Combiner<T> combiner) {
+        this.combiner = combiner;
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            d.setCombiner(combiner);
+        }
+    }
+
+    /**
+     * 封闭bucket并执行批处理，bucket已经被其他线程封闭时等待批处理完成
+     */
+    private void flushOrAwait(String key, Object slotKey, long timeWin, long batchNum,
+                              BucketRegistry.Window<Bucket3<T, R>> window, Bucket3<T, R> bucket3,
+                              AdaptiveBatchPolicy.KeyStat stat, boolean early, Function<BatchExecParam<T>, R> bachFunc) {
+        // 后续请求直接进入下一个批次，不再尝试加入当前bucket；锚定窗口下后续请求从自己的到达时间开始新的窗口
+        window.skipTo((batchNum + 1) * partition);
+        window.close();
+        List<T> taskList = bucket3.seal();
+        if (taskList == null) {
+            awaitFinished(bucket3);
+            return;
+        }
+        metrics.recordFlush(early);
+        String cacheKey = slotKey + "_" + timeWin + "_" + batchNum;
+        bucket3.setCacheKey(cacheKey);
+
+        Combiner<T> combiner = this.combiner;
+        BatchExecParam<T> batchExecParam = new BatchExecParam<>(key,
+                combiner == null ? taskList : Combiner.combineAll(combiner, taskList, null), cacheKey);
+        batchExecParam.setBucketId(bucket3.getId());
+        long s = System.nanoTime();
+        BatchExecResult<R> batchExecResult = exec(bachFunc, batchExecParam);
+        long cost = System.nanoTime() - s;
+        if (stat != null) {
+            stat.onBatch(cost);
+        }
+        metrics.recordBatch(key, taskList.size(), cost);
+        setBucketResult(bucket3, batchExecResult);
+        bucket3.setFinished(true);
+
+        for (Thread subThread : bucket3.getSubThreadList()) {
+            LockSupport.unpark(subThread);
+        }
+        if (Thread.currentThread() != bucket3.getMainThread()) {
+            // 子线程执行了批处理，主线程可能还在等待窗口
+            LockSupport.unpark(bucket3.getMainThread());
+        }
+    }
+
+    private void awaitFinished(Bucket3<T, R> bucket3) {
+        // 防止虚假唤醒，直到批处理完成才返回
+        while (!bucket3.isFinished()) {
+            LockSupport.park(bucket3);
         }
     }
 
@@ -117,4 +290,43 @@ public class BatchExecutor3<T, R> {
         }
     }
 
+    /**
+     * 关闭异步合并使用的flusher线程，最多等待30秒让执行中的批处理完成
+     *
+     * @see #close(long, TimeUnit)
+     */
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭异步合并、带超时的调用以及flusher模式使用的flusher线程，见{@link BatchDispatcher#shutdown()}：
+     * 还没有开始批处理的任务异常完成，之后的这些调用直接失败。主线程模式的同步调用不受影响
+     *
+     * @return false: 超时时仍有批处理在执行
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        BatchDispatcher<T, R> d = dispatcher();
+        d.shutdown();
+        return d.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 只使用主线程模式时不创建flusher线程池。并发创建时只有一个生效，其余的还没有启动过线程，直接丢弃
+     */
+    private BatchDispatcher<T, R> dispatcher() {
+        BatchDispatcher<T, R> d = dispatcher.get();
+        if (d != null) {
+            return d;
+        }
+        BatchDispatcher<T, R> created = new BatchDispatcher<>("BatchExecutor3-flusher-", options, metrics);
+        created.setCombiner(combiner);
+        if (!dispatcher.compareAndSet(null, created)) {
+            return dispatcher.get();
+        }
+        // 创建期间设置的combiner可能没有传给新的dispatcher
+        created.setCombiner(combiner);
+        return created;
+    }
+
 }
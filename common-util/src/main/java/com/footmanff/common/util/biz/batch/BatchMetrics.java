@@ -0,0 +1,94 @@
+package com.footmanff.common.util.biz.batch;
+
+/**
+ * 合并执行器的统计接口，所有执行器在同样的时机记录统计数据
+ * <p/>
+ * 记录方法会在调用方线程、flusher线程、消费线程上高并发调用，实现需要保证无锁、无竞争
+ */
+public interface BatchMetrics {
+
+    /**
+     * 不做任何统计
+     */
+    BatchMetrics NONE = new BatchMetrics() {
+    };
+
+    /**
+     * 一次批处理执行完成
+     *
+     * @param key       执行批次唯一键
+     * @param size      批次中的任务数
+     * @param costNanos 合并函数耗时，纳秒
+     */
+    default void recordBatch(String key, int size, long costNanos) {
+    }
+
+    /**
+     * 一个调用方从提交任务到拿到结果的等待时间
+     */
+    default void recordWait(long waitNanos) {
+    }
+
+    /**
+     * 一次bucket的flush
+     *
+     * @param early true: 达到批次大小提前执行  false: 等待窗口到期执行
+     */
+    default void recordFlush(boolean early) {
+    }
+
+    /**
+     * bucket已经开始批处理，调用方需要重新获取bucket
+     */
+    default void recordReacquire() {
+    }
+
+    /**
+     * 一个调用方等待超时或者被中断，放弃等待结果
+     */
+    default void recordTimeout() {
+    }
+
+    /**
+     * 生产数据时队列已满，之后按溢出处理方式记录处理结果
+     */
+    default void recordOverflow() {
+    }
+
+    /**
+     * 队列已满时等待以后写入成功
+     */
+    default void recordBlocked() {
+    }
+
+    /**
+     * 队列已满时写入了其他队列
+     */
+    default void recordRedirected() {
+    }
+
+    /**
+     * 队列已满时丢弃了一条最早的数据
+     */
+    default void recordDropped() {
+    }
+
+    /**
+     * 队列已满时由生产者线程直接消费
+     */
+    default void recordCallerRuns() {
+    }
+
+    /**
+     * 队列已满时写入了溢出队列
+     */
+    default void recordSpilled() {
+    }
+
+    /**
+     * 队列已满并且按溢出处理方式处理以后仍然没有写入
+     */
+    default void recordRejected() {
+    }
+
+}
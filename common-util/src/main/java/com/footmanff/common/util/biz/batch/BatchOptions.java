@@ -0,0 +1,193 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * 合并执行器的可选配置，未设置的配置项保持默认行为
+ */
+public class BatchOptions {
+
+    /**
+     * 自适应批次策略，为null时使用固定的maxTime、batchLimit
+     */
+    private AdaptiveBatchPolicy adaptivePolicy;
+
+    /**
+     * flusher模式，调用方只把任务放进bucket然后等待结果，窗口到期、批处理执行都由flusher线程负责，
+     * 不再由第一个进入的线程作为主线程等待窗口
+     * <p/>
+     * 该模式下任务通过CAS无锁累积，调用方通过CompletableFuture等待结果，阻塞期间不持有任何监视器锁，
+     * 调用方运行在虚拟线程上时不会钉住载体线程，适合大量虚拟线程并发调用
+     */
+    private boolean flusherMode;
+
+    /**
+     * flusher线程数，负责异步合并以及flusher模式下的窗口到期和批处理执行
+     */
+    private int flusherThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 统计，为null时执行器使用{@link DefaultBatchMetrics}
+     */
+    private BatchMetrics metrics;
+
+    /**
+     * 根据key返回分片数，为null或者返回值不超过1时不分片。分片以后一个热点key的请求分散到多个bucket，
+     * 各个分片分别合并、并行执行批处理，flusher模式、异步合并以及各执行器的主线程模式都生效
+     */
+    private ToIntFunction<String> shardCount;
+
+    /**
+     * 合并函数整批抛出异常时的处理方式，对{@link BatchDispatcher}执行的所有批次生效，主线程模式不生效
+     */
+    private FailureIsolation failureIsolation = FailureIsolation.NONE;
+
+    /**
+     * {@link FailureIsolation#PER_ITEM}时单个任务重试的最大并发数
+     */
+    private int isolationParallelism = 4;
+
+    /**
+     * 异步合并、flusher模式下回收复用bucket的池大小，0代表不复用。批处理完成以后{@link AsyncBucket}对象和其中
+     * {@link TaskAccumulator}的分段数组清空后留给下一批使用；传给合并函数的任务列表每批新建，不会被复用。
+     * 主线程模式的{@link Bucket}、{@link Bucket2}、{@link Bucket3}不复用，批处理以后被唤醒的子线程还要读取bucket中的结果，没有确定的回收时机
+     */
+    private int bucketPoolSize;
+
+    /**
+     * 主线程模式下，填满bucket的线程直接执行批处理，不再唤醒主线程、等主线程被调度以后再执行；
+     * 主线程和其他子线程一样等待结果。主线程和填满bucket的线程通过封闭bucket竞争批处理，只有一个线程执行。
+     * 只对BatchExecutor2、BatchExecutor3的主线程模式生效
+     */
+    private boolean selfFlush;
+
+    /**
+     * 主线程模式下按请求到达划分窗口：窗口从key的第一个请求到达开始，持续maxTime，或者直到窗口内的批次开始执行，
+     * 之后到达的请求开启新的窗口。默认按System.currentTimeMillis() / maxTime划分，边界前到达的请求只能合并到很少的任务。
+     * flusher模式、异步合并的窗口本来就从bucket的第一个任务开始计时，不受该配置影响
+     */
+    private boolean anchoredWindow;
+
+    /**
+     * flusher模式、异步合并下每个key同时执行的批次数上限，0代表不限制
+     * <p/>
+     * 大于0时为流水线合并：上一批执行期间下一批继续累积；执行中的批次达到上限时，到期或者达到batchLimit的bucket不执行，
+     * 继续累积任务（批次可以超过batchLimit），等有批次完成以后再执行，下游的调用数不超过上限。分片时按分片计数
+     */
+    private int maxInFlight;
+
+    public AdaptiveBatchPolicy getAdaptivePolicy() {
+        return adaptivePolicy;
+    }
+
+    public BatchOptions setAdaptivePolicy(AdaptiveBatchPolicy adaptivePolicy) {
+        this.adaptivePolicy = adaptivePolicy;
+        return this;
+    }
+
+    public boolean isFlusherMode() {
+        return flusherMode;
+    }
+
+    public BatchOptions setFlusherMode(boolean flusherMode) {
+        this.flusherMode = flusherMode;
+        return this;
+    }
+
+    public int getFlusherThreads() {
+        return flusherThreads;
+    }
+
+    public BatchOptions setFlusherThreads(int flusherThreads) {
+        if (flusherThreads <= 0) {
+            throw new IllegalArgumentException("flusher线程数需大于0");
+        }
+        this.flusherThreads = flusherThreads;
+        return this;
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    public BatchOptions setMetrics(BatchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public ToIntFunction<String> getShardCount() {
+        return shardCount;
+    }
+
+    public BatchOptions setShardCount(ToIntFunction<String> shardCount) {
+        this.shardCount = shardCount;
+        return this;
+    }
+
+    public FailureIsolation getFailureIsolation() {
+        return failureIsolation;
+    }
+
+    public BatchOptions setFailureIsolation(FailureIsolation failureIsolation) {
+        if (failureIsolation == null) {
+            throw new IllegalArgumentException("failureIsolation不能为null");
+        }
+        this.failureIsolation = failureIsolation;
+        return this;
+    }
+
+    public int getIsolationParallelism() {
+        return isolationParallelism;
+    }
+
+    public BatchOptions setIsolationParallelism(int isolationParallelism) {
+        if (isolationParallelism <= 0) {
+            throw new IllegalArgumentException("隔离重试并发数需大于0");
+        }
+        this.isolationParallelism = isolationParallelism;
+        return this;
+    }
+
+    public int getBucketPoolSize() {
+        return bucketPoolSize;
+    }
+
+    public BatchOptions setBucketPoolSize(int bucketPoolSize) {
+        if (bucketPoolSize < 0) {
+            throw new IllegalArgumentException("bucket池大小不得小于0");
+        }
+        this.bucketPoolSize = bucketPoolSize;
+        return this;
+    }
+
+    public boolean isSelfFlush() {
+        return selfFlush;
+    }
+
+    public BatchOptions setSelfFlush(boolean selfFlush) {
+        this.selfFlush = selfFlush;
+        return this;
+    }
+
+    public boolean isAnchoredWindow() {
+        return anchoredWindow;
+    }
+
+    public BatchOptions setAnchoredWindow(boolean anchoredWindow) {
+        this.anchoredWindow = anchoredWindow;
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public BatchOptions setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight不得小于0");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+}
@@ -4,15 +4,12 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Bucket<T, R> {
 
-    private String id = UUID.randomUUID().toString();
-
-    private List<T> taskList = new ArrayList<>();
+    private final long id = BucketIds.next();
 
     private String key;
 
@@ -20,40 +17,78 @@ public class Bucket<T, R> {
 
     private ReentrantLock lock;
 
+    private volatile Thread mainThread;
+
     private Condition mainThreadCondition;
 
     private volatile boolean mainThreadSignal;
 
-    private List<Pair<ReentrantLock, Condition>> subThreadConditionList = new ArrayList<>();
-
     private R result;
 
     private Throwable exp;
 
-    private boolean invalidated;
+    /**
+     * 任务以及子线程的等待条件，无锁加入，封闭即失效。不使用synchronized，调用方运行在虚拟线程上时不会钉住载体线程
+     */
+    private final TaskAccumulator<T, Pair<ReentrantLock, Condition>> accumulator = new TaskAccumulator<>();
+
+    /**
+     * 封闭时的任务数，封闭以后有效
+     */
+    private int sealedSize = -1;
 
     public String getId() {
-        return id;
+        return BucketIds.format(id);
     }
 
     public boolean isInvalidated() {
-        return invalidated;
+        return accumulator.isSealed();
+    }
+
+    /**
+     * 主线程加入自己的任务
+     *
+     * @return false: bucket已经失效，或者任务数已经达到{@link TaskAccumulator#CAPACITY}
+     */
+    public boolean addTask(T task) {
+        return accumulator.add(task, null, 0L) > 0;
     }
 
-    public void setInvalidated(boolean invalidated) {
-        this.invalidated = invalidated;
+    /**
+     * 子线程加入bucket，加入任务以及等待条件
+     *
+     * @return false: bucket已经失效，或者任务数已经达到{@link TaskAccumulator#CAPACITY}，不再接收新的任务
+     */
+    public boolean join(T task, Pair<ReentrantLock, Condition> c) {
+        return accumulator.add(task, c, 0L) > 0;
     }
 
-    public synchronized void addTask(T task) {
-        taskList.add(task);
+    /**
+     * 主线程开始批处理前调用，之后join都会失败
+     */
+    public void invalidate() {
+        sealedSize = accumulator.seal();
     }
 
-    public synchronized void addSubThreadCondition(Pair<ReentrantLock, Condition> c) {
-        subThreadConditionList.add(c);
+    /**
+     * 已经加入的任务数
+     */
+    public int size() {
+        return accumulator.size();
     }
 
-    public synchronized List<Pair<ReentrantLock, Condition>> getSubThreadConditionList() {
-        return subThreadConditionList;
+    /**
+     * 仅在invalidate以后由主线程调用
+     */
+    public List<Pair<ReentrantLock, Condition>> getSubThreadConditionList() {
+        List<Pair<ReentrantLock, Condition>> list = new ArrayList<>(sealedSize);
+        for (int i = 0; i < sealedSize; i++) {
+            Pair<ReentrantLock, Condition> c = accumulator.getWaiter(i);
+            if (c != null) {
+                list.add(c);
+            }
+        }
+        return list;
     }
 
     public String getKey() {
@@ -72,8 +107,11 @@ public class Bucket<T, R> {
         this.exp = exp;
     }
 
-    public synchronized List<T> getTaskList() {
-        return taskList;
+    /**
+     * 仅在invalidate以后由主线程调用
+     */
+    public List<T> getTaskList() {
+        return accumulator.taskList(sealedSize);
     }
 
     public R getResult() {
@@ -84,6 +122,14 @@ public class Bucket<T, R> {
         this.result = result;
     }
 
+    public Thread getMainThread() {
+        return mainThread;
+    }
+
+    public void setMainThread(Thread mainThread) {
+        this.mainThread = mainThread;
+    }
+
     public Condition getMainThreadCondition() {
         return mainThreadCondition;
     }
@@ -5,7 +5,6 @@ import lombok.Data;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,7 +13,7 @@ import java.util.function.Function;
 @Data
 public class Bucket2<T, R> {
 
-    private String id = UUID.randomUUID().toString();
+    private final long id = BucketIds.next();
 
     private volatile ReentrantLock mainLock;
 
@@ -24,85 +23,131 @@ public class Bucket2<T, R> {
 
     private volatile Condition subCondition;
 
+    private long window;
+
+    private long batchNum;
+
+    private volatile Thread mainThread;
+
     private List<SubBucket> subBucketList;
 
-    private List<T> taskList;
+    /**
+     * 任务无锁加入，封闭以后不能有新的任务加进来
+     */
+    private final TaskAccumulator<T, Object> accumulator = new TaskAccumulator<>();
+
+    /**
+     * 封闭时的任务数
+     */
+    private int sealedSize;
 
     private R result;
 
     private Throwable exp;
 
     /**
-     * 是否已经批量过了，如果是，则不能有新的任务加进来
+     * 批处理是否已经完成，完成以后result、exp可读
      */
-    private boolean processed = false;
+    private boolean finished = false;
 
     public Bucket2() {
         subBucketList = new ArrayList<>(8);
         mainLock = new ReentrantLock();
         mainCondition = mainLock.newCondition();
-        taskList = new ArrayList<>();
 
         subLock = new ReentrantLock();
         subCondition = subLock.newCondition();
     }
 
     /**
-     * 添加任务到taskList，并且添加子锁到subBucketList
+     * 添加任务，子线程加入以后等待主线程完成批处理
      * <p/>
-     * 加锁，避免并发时，对List的add操作并发问题
+     * 任务无锁加入，只有等待批处理结果时才使用子锁
      *
      * @return false: bucket已经执行过批处理，已经不可用
      */
     public boolean init(T task, boolean isLastNum, boolean isMain) {
+        if (accumulator.add(task, null, 0L) < 0) {
+            return false;
+        }
+        if (!isMain) {
+            if (isLastNum) {
+                signalMain();
+            }
+            awaitFinished();
+        }
+        return true;
+    }
+
+    /**
+     * 只添加任务，不等待。填满bucket的线程自己执行批处理时使用
+     *
+     * @return 添加以后bucket中的任务数，-1代表bucket已经执行过批处理，已经不可用
+     */
+    public int add(T task) {
+        return accumulator.add(task, null, 0L);
+    }
+
+    /**
+     * 等待批处理完成
+     */
+    public void awaitFinished() {
         subLock.lock();
         try {
-            if (processed) {
-                return false;
-            }
-            taskList.add(task);
-            if (!isMain) {
-                if (isLastNum) {
-                    mainLock.lock();
-                    try {
-                        mainCondition.signal();
-                    } finally {
-                        mainLock.unlock();
-                    }
-                }
-                try {
-                    subCondition.await();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+            while (!finished) {
+                subCondition.await();
             }
-            return true;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         } finally {
             subLock.unlock();
         }
     }
 
     /**
-     * 加锁，避免批量处理的同时，还有其他线程在往List中加数据
+     * 封闭以后开始批处理，之后加入任务都会失败；批处理完成以后在子锁下发布结果并唤醒子线程。
+     * 由子线程执行时同时唤醒还在等待窗口的主线程
+     *
+     * @return false: bucket已经被其他线程封闭，当前线程需要等待批处理完成
      */
-    public void processTask(String key, Function<BatchExecParam<T>, R> bachFunc) {
-        subLock.lock();
-        try {
-            processed = true;
+    public boolean processTask(String key, String cacheKey, Combiner<T> combiner, Function<BatchExecParam<T>, R> bachFunc) {
+        int size = accumulator.seal();
+        if (size < 0) {
+            return false;
+        }
+        sealedSize = size;
+        List<T> taskList = accumulator.taskList(size);
 
-            BatchExecParam<T> batchExecParam = new BatchExecParam<>(key, taskList, null);
-            batchExecParam.setBucketId(id);
-            BatchExecResult<R> batchExecResult = exec(bachFunc, batchExecParam);
+        BatchExecParam<T> batchExecParam = new BatchExecParam<>(key,
+                combiner == null ? taskList : Combiner.combineAll(combiner, taskList, null), cacheKey);
+        batchExecParam.setBucketId(getId());
+        BatchExecResult<R> batchExecResult = exec(bachFunc, batchExecParam);
 
+        subLock.lock();
+        try {
             if (batchExecResult.getResult() != null) {
                 this.result = batchExecResult.getResult();
             } else {
                 this.exp = batchExecResult.getExp();
             }
+            finished = true;
             subCondition.signalAll();
         } finally {
             subLock.unlock();
         }
+        if (Thread.currentThread() != mainThread) {
+            signalMain();
+        }
+        return true;
+    }
+
+    private void signalMain() {
+        mainLock.lock();
+        try {
+            mainCondition.signal();
+        } finally {
+            mainLock.unlock();
+        }
     }
 
     private BatchExecResult<R> exec(Function<BatchExecParam<T>, R> bachFunc, BatchExecParam<T> batchExecParam) {
@@ -114,4 +159,8 @@ public class Bucket2<T, R> {
         }
     }
 
-}
\ No newline at end of file
+    public String getId() {
+        return BucketIds.format(id);
+    }
+
+}
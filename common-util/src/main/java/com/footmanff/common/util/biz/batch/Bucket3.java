@@ -1,34 +1,82 @@
 package com.footmanff.common.util.biz.batch;
 
 import lombok.Data;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @Data
 public class Bucket3<T, R> {
     
     private String cacheKey;
     
-    private String id = UUID.randomUUID().toString();
+    private final long id = BucketIds.next();
     
     private volatile Thread mainThread;
     
-    private volatile ConcurrentLinkedQueue<Thread> subThreadList;
-    
-    private volatile ConcurrentLinkedQueue<T> taskList;
+    /**
+     * 任务以及等待的子线程，无锁加入，封闭以后不再接收新的任务
+     */
+    private final TaskAccumulator<T, Thread> accumulator = new TaskAccumulator<>();
+
+    /**
+     * 封闭时的任务数
+     */
+    private int sealedSize;
 
     private volatile R result;
 
     private volatile Throwable exp;
 
     /**
-     * 是否已经批量过了，如果是，则不能有新的任务加进来
+     * 是否已经达到批次大小，需要主线程提前执行
+     */
+    private volatile boolean signalled = false;
+
+    /**
+     * 批处理是否已经完成，完成以后result、exp可读
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * 加入任务，主线程传入的subThread为null
+     *
+     * @return 加入以后bucket中的任务数，-1代表bucket已经开始批处理，已经不可用
      */
-    private boolean processed = false;
+    public int offer(T task, Thread subThread) {
+        return accumulator.add(task, subThread, 0L);
+    }
 
-    public Bucket3() {
-        taskList = new ConcurrentLinkedQueue<>();
-        subThreadList = new ConcurrentLinkedQueue<>();
+    /**
+     * 开始批处理，取出全部任务，之后不再接收新的任务
+     *
+     * @return null: bucket已经被其他线程封闭
+     */
+    public List<T> seal() {
+        int size = accumulator.seal();
+        if (size < 0) {
+            return null;
+        }
+        sealedSize = size;
+        return accumulator.taskList(size);
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * 等待结果的子线程，仅在seal以后调用
+     */
+    public List<Thread> getSubThreadList() {
+        List<Thread> list = new ArrayList<>(sealedSize);
+        for (int i = 0; i < sealedSize; i++) {
+            Thread subThread = accumulator.getWaiter(i);
+            if (subThread != null) {
+                list.add(subThread);
+            }
+        }
+        return list;
+    }
+
+    public String getId() {
+        return BucketIds.format(id);
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bucket id生成，进程内单调递增，只在创建bucket时自增一次计数器，不再每个bucket调用一次UUID
+ * <p/>
+ * 格式化以后带上进程启动时生成的随机前缀，多个进程之间的id不会重复
+ */
+final class BucketIds {
+
+    private static final String PREFIX = UUID.randomUUID().toString().substring(0, 8) + "-";
+
+    private static final AtomicLong SEQ = new AtomicLong();
+
+    private BucketIds() {
+    }
+
+    static long next() {
+        return SEQ.incrementAndGet();
+    }
+
+    /**
+     * 转成对外的字符串id，只在批处理时调用一次
+     */
+    static String format(long id) {
+        return PREFIX + id;
+    }
+
+}
@@ -0,0 +1,327 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 按(key, 时间窗口, 批次号)定位bucket的注册表，替代拼接字符串作为缓存key的方式
+ * <p/>
+ * 每个key对应一个固定大小的窗口环，窗口号对环大小取模定位槽位，新窗口直接覆盖旧窗口；每个窗口内同样用一个固定大小的批次环保存bucket。
+ * 获取已经存在的bucket时不创建对象、不拼接字符串，只有创建新窗口、新bucket时才会分配内存
+ * <p/>
+ * 每个key占用的内存固定为一个窗口环加上环中窗口的批次环；key的数量受maxKeys限制，
+ * 长时间没有访问的key在新key加入时被清理，因此注册表占用的内存有上限，不随运行时间增长
+ * <p/>
+ * 窗口有两种划分方式，同一个注册表只能使用其中一种：{@link #window(String, long)}由调用方按时钟对齐划分窗口号；
+ * {@link #anchoredWindow(String, long)}从key的第一个请求到达开始计时，窗口号按key递增
+ */
+public class BucketRegistry<B> {
+
+    private static final int DEFAULT_WINDOW_RING_SIZE = 4;
+
+    private static final int DEFAULT_BATCH_RING_SIZE = 16;
+
+    private static final int DEFAULT_MAX_KEYS = 100000;
+
+    private static final long DEFAULT_IDLE_MILLIS = 60000L;
+
+    private final ConcurrentHashMap<Object, KeyRing<B>> keyMap = new ConcurrentHashMap<>();
+
+    private final int windowRingSize;
+
+    private final int batchRingSize;
+
+    private final Function<Object, KeyRing<B>> keyRingFactory;
+
+    private final KeyEvictor<Object, KeyRing<B>> keyEvictor;
+
+    public BucketRegistry() {
+        this(DEFAULT_WINDOW_RING_SIZE, DEFAULT_BATCH_RING_SIZE);
+    }
+
+    /**
+     * @param windowRingSize 每个key保留的窗口数，会向上取整为2的幂
+     * @param batchRingSize  每个窗口保留的批次数，会向上取整为2的幂
+     */
+    public BucketRegistry(int windowRingSize, int batchRingSize) {
+        this(windowRingSize, batchRingSize, DEFAULT_MAX_KEYS, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * @param windowRingSize 每个key保留的窗口数，会向上取整为2的幂
+     * @param batchRingSize  每个窗口保留的批次数，会向上取整为2的幂
+     * @param maxKeys        最多保留的key数量
+     * @param idleMillis     超过这个时间没有访问的key会被清理，毫秒
+     */
+    public BucketRegistry(int windowRingSize, int batchRingSize, int maxKeys, long idleMillis) {
+        this.windowRingSize = ceilPowerOfTwo(windowRingSize);
+        this.batchRingSize = ceilPowerOfTwo(batchRingSize);
+        this.keyRingFactory = k -> new KeyRing<>(this.windowRingSize, this.batchRingSize);
+        this.keyEvictor = new KeyEvictor<>(keyMap, maxKeys, TimeUnit.MILLISECONDS.toNanos(idleMillis),
+                ring -> ring.lastActive);
+    }
+
+    /**
+     * 获取key在指定时间窗口的状态，窗口不存在时创建
+     * <p/>
+     * 如果窗口所在槽位已经被更新的窗口占用（调用方拿到时间以后被延迟调度），返回一个不注册的独立窗口，
+     * 此时调用方自己成为一个单独的批次，不影响正确性
+     *
+     * @param key 注册key，字符串或者{@link KeySharding.ShardKey}
+     */
+    public Window<B> window(Object key, long window) {
+        KeyRing<B> ring = keyMap.get(key);
+        if (ring == null) {
+            keyEvictor.beforeInsert();
+            ring = keyMap.computeIfAbsent(key, keyRingFactory);
+        }
+        return ring.window(window);
+    }
+
+    /**
+     * 获取key当前的锚定窗口，窗口从第一个请求到达开始，持续maxNanos或者直到被{@link Window#close()}，
+     * 之后到达的请求开启下一个窗口。窗口边界和时钟对齐无关，每个窗口都有完整的maxNanos用于合并
+     */
+    public Window<B> anchoredWindow(Object key, long maxNanos) {
+        KeyRing<B> ring = keyMap.get(key);
+        if (ring == null) {
+            keyEvictor.beforeInsert();
+            ring = keyMap.computeIfAbsent(key, keyRingFactory);
+        }
+        return ring.anchoredWindow(maxNanos);
+    }
+
+    /**
+     * 当前保留的key数量
+     */
+    public int size() {
+        return keyMap.size();
+    }
+
+    /**
+     * 获取bucket，不存在时通过factory创建。并发创建时只有一个bucket会注册成功，其他线程创建的bucket直接丢弃
+     */
+    public B computeIfAbsent(String key, long window, long batch, Factory<B> factory) {
+        return window(key, window).computeIfAbsent(key, batch, factory);
+    }
+
+    /**
+     * 移除bucket，仅当注册的bucket就是传入的bucket时才移除
+     */
+    public boolean remove(Object key, long window, long batch, B bucket) {
+        KeyRing<B> ring = keyMap.get(key);
+        if (ring == null) {
+            return false;
+        }
+        Window<B> w = ring.get(window);
+        return w != null && w.remove(batch, bucket);
+    }
+
+    private static int ceilPowerOfTwo(int n) {
+        if (n <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    @FunctionalInterface
+    public interface Factory<B> {
+
+        B create(String key, long window, long batch);
+
+    }
+
+    private static class KeyRing<B> {
+
+        private static final long TOUCH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final AtomicReferenceArray<Window<B>> slots;
+
+        private final int mask;
+
+        private final int batchRingSize;
+
+        /**
+         * 最近一次访问的时间，纳秒。一直在同一个窗口内合并的热点key同样是活跃的，不能只在创建窗口时更新
+         */
+        private volatile long lastActive = System.nanoTime();
+
+        /**
+         * 当前的锚定窗口，只在锚定窗口方式下使用
+         */
+        private final AtomicReference<Window<B>> anchored = new AtomicReference<>();
+
+        KeyRing(int size, int batchRingSize) {
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+            this.batchRingSize = batchRingSize;
+        }
+
+        Window<B> get(long window) {
+            Window<B> w = slots.get((int) (window & mask));
+            return w != null && w.window == window ? w : null;
+        }
+
+        Window<B> window(long window) {
+            touch(System.nanoTime());
+            int index = (int) (window & mask);
+            while (true) {
+                Window<B> current = slots.get(index);
+                if (current != null && current.window == window) {
+                    return current;
+                }
+                if (current != null && current.window > window) {
+                    return new Window<>(window, batchRingSize);
+                }
+                Window<B> created = new Window<>(window, batchRingSize);
+                if (slots.compareAndSet(index, current, created)) {
+                    return created;
+                }
+            }
+        }
+
+        Window<B> anchoredWindow(long maxNanos) {
+            long now = System.nanoTime();
+            touch(now);
+            while (true) {
+                Window<B> current = anchored.get();
+                if (current != null && !current.closed && now - current.start < maxNanos) {
+                    return current;
+                }
+                Window<B> created = new Window<>(current == null ? 0L : current.window + 1, batchRingSize, now);
+                if (anchored.compareAndSet(current, created)) {
+                    // 同时放进窗口环，按窗口号移除bucket时可以找到
+                    slots.set((int) (created.window & mask), created);
+                    return created;
+                }
+            }
+        }
+
+        /**
+         * 记录访问时间，距离上次记录不到1毫秒时不写，避免热点key的每次访问都写同一个缓存行
+         */
+        private void touch(long now) {
+            if (now - lastActive >= TOUCH_INTERVAL) {
+                lastActive = now;
+            }
+        }
+    }
+
+    /**
+     * 一个key在一个时间窗口内的状态，包括序号计数器以及窗口内各批次的bucket
+     */
+    public static class Window<B> {
+
+        private final long window;
+
+        /**
+         * 锚定窗口第一个请求到达的时间，纳秒
+         */
+        private final long start;
+
+        /**
+         * 锚定窗口是否已经关闭，关闭以后到达的请求进入下一个窗口
+         */
+        private volatile boolean closed;
+
+        private final AtomicLong seq = new AtomicLong();
+
+        private final AtomicReferenceArray<Entry<B>> batches;
+
+        private final int mask;
+
+        Window(long window, int batchRingSize) {
+            this(window, batchRingSize, 0L);
+        }
+
+        Window(long window, int batchRingSize, long start) {
+            this.window = window;
+            this.start = start;
+            this.batches = new AtomicReferenceArray<>(batchRingSize);
+            this.mask = batchRingSize - 1;
+        }
+
+        public long getWindow() {
+            return window;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * 关闭锚定窗口，用于窗口内的批次已经开始执行，之后到达的请求从自己的到达时间开始新的窗口。按时钟划分的窗口没有影响
+         */
+        public void close() {
+            closed = true;
+        }
+
+        /**
+         * 窗口内的下一个序号，从0开始，保证每个批次都能分到完整的partition个序号
+         */
+        public long nextSeq() {
+            return seq.getAndIncrement();
+        }
+
+        /**
+         * 把序号推进到seq，已经超过seq时不变。用于批次提前执行以后，让后续请求直接进入下一个批次
+         */
+        public void skipTo(long seq) {
+            long current;
+            while ((current = this.seq.get()) < seq) {
+                if (this.seq.compareAndSet(current, seq)) {
+                    return;
+                }
+            }
+        }
+
+        public B get(long batch) {
+            Entry<B> entry = batches.get((int) (batch & mask));
+            return entry != null && entry.batch == batch ? entry.bucket : null;
+        }
+
+        public B computeIfAbsent(String key, long batch, Factory<B> factory) {
+            int index = (int) (batch & mask);
+            while (true) {
+                Entry<B> current = batches.get(index);
+                if (current != null && current.batch == batch) {
+                    return current.bucket;
+                }
+                B bucket = factory.create(key, window, batch);
+                if (current != null && current.batch > batch) {
+                    // 槽位已经被更新的批次占用，独立成为一个批次
+                    return bucket;
+                }
+                if (batches.compareAndSet(index, current, new Entry<>(batch, bucket))) {
+                    return bucket;
+                }
+            }
+        }
+
+        public boolean remove(long batch, B bucket) {
+            int index = (int) (batch & mask);
+            Entry<B> current = batches.get(index);
+            if (current == null || current.batch != batch || current.bucket != bucket) {
+                return false;
+            }
+            return batches.compareAndSet(index, current, null);
+        }
+    }
+
+    private static class Entry<B> {
+
+        private final long batch;
+
+        private final B bucket;
+
+        Entry(long batch, B bucket) {
+            this.batch = batch;
+            this.bucket = bucket;
+        }
+    }
+
+}
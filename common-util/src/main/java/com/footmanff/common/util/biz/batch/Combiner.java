@@ -0,0 +1,56 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批处理前的预聚合，合并键相同的任务先合并成一个任务再交给合并函数，减少一个批次发往下游的数据量
+ * <p/>
+ * 例如同一个SKU的多个扣减请求合并成一个扣减总数的任务。合并以后任务的结果交给参与合并的每一个调用方
+ */
+public interface Combiner<T> {
+
+    /**
+     * 合并键，合并键相同的任务会被合并，返回null的任务不参与合并
+     */
+    Object combineKey(T task);
+
+    /**
+     * 合并两个合并键相同的任务。入参是调用方提交的任务，不要修改，需要时返回新的对象
+     */
+    T combine(T left, T right);
+
+    /**
+     * 按合并键合并任务列表，合并以后的任务保持第一次出现的顺序
+     *
+     * @param combiner   合并方式
+     * @param taskList   原始任务
+     * @param groupIndex 不为null时写入每个原始任务对应的合并以后任务的下标，长度不小于taskList
+     * @return 合并以后的任务
+     */
+    static <T> List<T> combineAll(Combiner<T> combiner, List<T> taskList, int[] groupIndex) {
+        List<T> combinedList = new ArrayList<>(taskList.size());
+        Map<Object, Integer> indexMap = new HashMap<>();
+        for (int i = 0; i < taskList.size(); i++) {
+            T task = taskList.get(i);
+            Object combineKey = combiner.combineKey(task);
+            Integer index = combineKey == null ? null : indexMap.get(combineKey);
+            if (index == null) {
+                index = combinedList.size();
+                combinedList.add(task);
+                if (combineKey != null) {
+                    indexMap.put(combineKey, index);
+                }
+            } else {
+                combinedList.set(index, combiner.combine(combinedList.get(index), task));
+            }
+            if (groupIndex != null) {
+                groupIndex[i] = index;
+            }
+        }
+        return combinedList;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 跨key合并执行。同一个窗口内不同key的任务合并成一次合并函数调用，合并函数按key收到任务列表、按key返回结果，
+ * 结果按key交给对应的调用方
+ * <p/>
+ * 适用于下游支持一次更新多行的场景：大量长尾key各自只有少量请求时，按key合并只能得到大量很小的批次，跨key合并以后下游调用数按窗口计算
+ * <p/>
+ * 窗口、批次大小、flusher线程、分片、失败隔离、流水线合并等都沿用{@link BatchDispatcher}，batchLimit按任务数计算。
+ * 一个执行器对应一种下游调用，合并函数以创建bucket的任务传入的函数为准
+ */
+public class CrossKeyBatchExecutor<T, R> {
+
+    /**
+     * 所有key共用的bucket注册key
+     */
+    private static final String GROUP_KEY = "cross-key";
+
+    private final int batchLimit;
+
+    private final long maxTime;
+
+    private final BatchDispatcher<KeyedTask<T>, R> dispatcher;
+
+    private final BatchMetrics metrics;
+
+    public CrossKeyBatchExecutor(int batchLimit, long maxTime) {
+        this(batchLimit, maxTime, new BatchOptions());
+    }
+
+    public CrossKeyBatchExecutor(int batchLimit, long maxTime, BatchOptions options) {
+        if (batchLimit <= 0) {
+            throw new IllegalArgumentException("batchLimit需大于0");
+        }
+        if (maxTime <= 0) {
+            throw new IllegalArgumentException("maxTime需大于0");
+        }
+        this.batchLimit = batchLimit;
+        this.maxTime = maxTime;
+        this.metrics = options.getMetrics() == null ? new DefaultBatchMetrics() : options.getMetrics();
+        this.dispatcher = new BatchDispatcher<>("CrossKeyBatchExecutor-flusher-", options, metrics);
+    }
+
+    /**
+     * 异步跨key合并执行，立即返回future
+     *
+     * @param key      任务所属的key
+     * @param task     当前执行参数
+     * @param bachFunc 合并函数，参数为key到任务列表的映射，返回key到结果的映射，映射中不存在的key结果为null
+     * @return 当前任务所属key的结果，批处理异常时future异常完成
+     */
+    public CompletableFuture<R> executeAsync(String key, T task, Function<Map<String, List<T>>, Map<String, R>> bachFunc) {
+        return dispatcher.submitEach(GROUP_KEY, new KeyedTask<>(key, task), maxTime, batchLimit, param -> apply(param, bachFunc));
+    }
+
+    /**
+     * 跨key合并执行，阻塞等待当前任务所属key的结果
+     *
+     * @see #executeAsync(String, Object, Function)
+     */
+    public R execute(String key, T task, Function<Map<String, List<T>>, Map<String, R>> bachFunc) {
+        return BatchDispatcher.join(executeAsync(key, task, bachFunc));
+    }
+
+    /**
+     * 跨key合并执行，最多等待timeout，超时或者被中断时还没有开始批处理的任务不再执行
+     *
+     * @throws RuntimeException 超时时cause为{@link java.util.concurrent.TimeoutException}
+     */
+    public R execute(String key, T task, long timeout, TimeUnit unit, Function<Map<String, List<T>>, Map<String, R>> bachFunc) {
+        return dispatcher.submitEachAndWait(GROUP_KEY, new KeyedTask<>(key, task), maxTime, batchLimit,
+                param -> apply(param, bachFunc), timeout, unit);
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 按key分组调用合并函数，再把每个key的结果按下标交给对应的任务
+     */
+    private List<BatchExecResult<R>> apply(BatchExecParam<KeyedTask<T>> param,
+                                           Function<Map<String, List<T>>, Map<String, R>> bachFunc) {
+        List<KeyedTask<T>> taskList = param.getTaskList();
+        Map<String, List<T>> taskMap = new LinkedHashMap<>();
+        for (KeyedTask<T> keyedTask : taskList) {
+            taskMap.computeIfAbsent(keyedTask.key, k -> new ArrayList<>()).add(keyedTask.task);
+        }
+        Map<String, R> resultMap = bachFunc.apply(taskMap);
+        if (resultMap == null) {
+            throw new IllegalStateException("合并函数返回的结果映射为null");
+        }
+        List<BatchExecResult<R>> list = new ArrayList<>(taskList.size());
+        for (KeyedTask<T> keyedTask : taskList) {
+            list.add(new BatchExecResult<>(resultMap.get(keyedTask.key)));
+        }
+        return list;
+    }
+
+    /**
+     * 带key的任务，作为bucket中的任务
+     */
+    static class KeyedTask<T> {
+
+        private final String key;
+
+        private final T task;
+
+        KeyedTask(String key, T task) {
+            this.key = key;
+            this.task = task;
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.footmanff.common.util.biz.batch;
+
+/**
+ * 延迟写任务达到最大重试次数以后仍然失败时的处理，例如写入死信表或者告警。正常返回以后任务在预写日志中标记为已flush，
+ * 不再重试也不再回放；抛出异常时任务留在日志中，本进程不再重试，下次创建执行器时回放
+ */
+@FunctionalInterface
+public interface DeadLetterHandler<T> {
+
+    /**
+     * @param key   任务提交时的key
+     * @param task  失败的任务
+     * @param cause 最后一次批处理的异常
+     */
+    void handle(String key, T task, Throwable cause);
+
+}
@@ -0,0 +1,263 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 默认的统计实现，计数全部使用LongAdder，分布使用{@link Log2Histogram}，记录路径上没有锁也没有CAS竞争
+ * <p/>
+ * 按key统计合并比例，key的数量超过maxKeys以后新出现的key不再单独统计，避免key无限增长占用内存
+ */
+public class DefaultBatchMetrics implements BatchMetrics {
+
+    private static final int DEFAULT_MAX_KEYS = 10000;
+
+    private final Log2Histogram batchSize = new Log2Histogram();
+
+    private final Log2Histogram batchCost = new Log2Histogram();
+
+    private final Log2Histogram waitCost = new Log2Histogram();
+
+    private final LongAdder earlyFlushCount = new LongAdder();
+
+    private final LongAdder timeoutFlushCount = new LongAdder();
+
+    private final LongAdder reacquireCount = new LongAdder();
+
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private final LongAdder overflowCount = new LongAdder();
+
+    private final LongAdder blockedCount = new LongAdder();
+
+    private final LongAdder redirectedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final LongAdder callerRunsCount = new LongAdder();
+
+    private final LongAdder spilledCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final ConcurrentHashMap<String, KeyStat> keyStatMap = new ConcurrentHashMap<>();
+
+    private final int maxKeys;
+
+    public DefaultBatchMetrics() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    public DefaultBatchMetrics(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    @Override
+    public void recordBatch(String key, int size, long costNanos) {
+        batchSize.record(size);
+        batchCost.record(costNanos);
+        KeyStat keyStat = keyStat(key);
+        if (keyStat != null) {
+            keyStat.taskCount.add(size);
+            keyStat.batchCount.increment();
+        }
+    }
+
+    @Override
+    public void recordWait(long waitNanos) {
+        waitCost.record(waitNanos);
+    }
+
+    @Override
+    public void recordFlush(boolean early) {
+        if (early) {
+            earlyFlushCount.increment();
+        } else {
+            timeoutFlushCount.increment();
+        }
+    }
+
+    @Override
+    public void recordReacquire() {
+        reacquireCount.increment();
+    }
+
+    @Override
+    public void recordTimeout() {
+        timeoutCount.increment();
+    }
+
+    @Override
+    public void recordOverflow() {
+        overflowCount.increment();
+    }
+
+    @Override
+    public void recordBlocked() {
+        blockedCount.increment();
+    }
+
+    @Override
+    public void recordRedirected() {
+        redirectedCount.increment();
+    }
+
+    @Override
+    public void recordDropped() {
+        droppedCount.increment();
+    }
+
+    @Override
+    public void recordCallerRuns() {
+        callerRunsCount.increment();
+    }
+
+    @Override
+    public void recordSpilled() {
+        spilledCount.increment();
+    }
+
+    @Override
+    public void recordRejected() {
+        rejectedCount.increment();
+    }
+
+    private KeyStat keyStat(String key) {
+        if (key == null) {
+            return null;
+        }
+        KeyStat keyStat = keyStatMap.get(key);
+        if (keyStat == null && keyStatMap.size() < maxKeys) {
+            keyStat = keyStatMap.computeIfAbsent(key, k -> new KeyStat());
+        }
+        return keyStat;
+    }
+
+    /**
+     * 批次大小分布
+     */
+    public Log2Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 合并函数耗时分布，纳秒
+     */
+    public Log2Histogram getBatchCost() {
+        return batchCost;
+    }
+
+    /**
+     * 调用方从提交任务到拿到结果的等待时间分布，纳秒
+     */
+    public Log2Histogram getWaitCost() {
+        return waitCost;
+    }
+
+    public long getEarlyFlushCount() {
+        return earlyFlushCount.sum();
+    }
+
+    public long getTimeoutFlushCount() {
+        return timeoutFlushCount.sum();
+    }
+
+    public long getReacquireCount() {
+        return reacquireCount.sum();
+    }
+
+    /**
+     * 等待超时或者被中断的调用方数量
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * 生产数据时队列已满的次数
+     */
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    /**
+     * 队列已满时等待以后写入成功的次数
+     */
+    public long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    /**
+     * 队列已满时写入其他队列的次数
+     */
+    public long getRedirectedCount() {
+        return redirectedCount.sum();
+    }
+
+    /**
+     * 队列已满时丢弃的最早数据条数
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 队列已满时生产者线程直接消费的次数
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.sum();
+    }
+
+    /**
+     * 队列已满时写入溢出队列的次数
+     */
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    /**
+     * 队列已满并且最终写入失败的次数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * key的合并比例，即平均每次批处理合并的任务数，没有统计数据时返回0
+     */
+    public double getMergeRatio(String key) {
+        KeyStat keyStat = keyStatMap.get(key);
+        if (keyStat == null) {
+            return 0D;
+        }
+        long batch = keyStat.batchCount.sum();
+        return batch == 0 ? 0D : (double) keyStat.taskCount.sum() / batch;
+    }
+
+    @Override
+    public String toString() {
+        return "batchCount: " + batchSize.getCount()
+                + " batchSize(avg/p50/p99): " + String.format("%.1f", batchSize.getMean()) + "/" + batchSize.getPercentile(50) + "/" + batchSize.getPercentile(99)
+                + " batchCost(p50/p99 us): " + batchCost.getPercentile(50) / 1000L + "/" + batchCost.getPercentile(99) / 1000L
+                + " wait(p50/p99 us): " + waitCost.getPercentile(50) / 1000L + "/" + waitCost.getPercentile(99) / 1000L
+                + " earlyFlush: " + getEarlyFlushCount()
+                + " timeoutFlush: " + getTimeoutFlushCount()
+                + " reacquire: " + getReacquireCount()
+                + " timeout: " + getTimeoutCount()
+                + " overflow: " + getOverflowCount()
+                + " blocked: " + getBlockedCount()
+                + " redirected: " + getRedirectedCount()
+                + " dropped: " + getDroppedCount()
+                + " callerRuns: " + getCallerRunsCount()
+                + " spilled: " + getSpilledCount()
+                + " rejected: " + getRejectedCount();
+    }
+
+    private static class KeyStat {
+
+        private final LongAdder taskCount = new LongAdder();
+
+        private final LongAdder batchCount = new LongAdder();
+    }
+
+}
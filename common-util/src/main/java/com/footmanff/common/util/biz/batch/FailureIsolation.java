@@ -0,0 +1,23 @@
+package com.footmanff.common.util.biz.batch;
+
+/**
+ * 合并函数整批抛出异常时的处理方式
+ */
+public enum FailureIsolation {
+
+    /**
+     * 批次中所有任务都失败
+     */
+    NONE,
+
+    /**
+     * 把批次对半拆分后分别重试，递归拆分抛出异常的一半，直到定位到单个失败的任务，其余任务正常完成
+     */
+    BISECT,
+
+    /**
+     * 每个任务单独重试一次，并发度受isolationParallelism限制
+     */
+    PER_ITEM
+
+}
@@ -0,0 +1,129 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * 按key保存状态的map的容量控制，在新key加入前调用
+ * <p/>
+ * 定期清理超过idle时间没有活跃的key；达到容量上限时先尝试清理，仍然超过上限则从随机位置开始抽样，淘汰样本中最久没有活跃的一个。
+ * 被淘汰的key再次出现时重新创建状态，只会损失一次合并机会，不影响正确性。并发加入时容量最多超出并发线程数
+ */
+class KeyEvictor<K, V> {
+
+    private static final int SAMPLE_SIZE = 16;
+
+    /**
+     * 达到容量上限时两次全量清理的最小间隔，避免每个新key都遍历整个map
+     */
+    private static final long FULL_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentHashMap<K, V> map;
+
+    private final int maxKeys;
+
+    private final long idleNanos;
+
+    private final ToLongFunction<V> lastActive;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param map        被控制的map
+     * @param maxKeys    key数量上限
+     * @param idleNanos  超过这个时间没有活跃的key会被清理，纳秒
+     * @param lastActive 状态最近一次活跃的时间，取值来自{@link System#nanoTime()}
+     */
+    KeyEvictor(ConcurrentHashMap<K, V> map, int maxKeys, long idleNanos, ToLongFunction<V> lastActive) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys需大于0");
+        }
+        if (idleNanos <= 0) {
+            throw new IllegalArgumentException("idle时间需大于0");
+        }
+        this.map = map;
+        this.maxKeys = maxKeys;
+        this.idleNanos = idleNanos;
+        this.lastActive = lastActive;
+    }
+
+    void beforeInsert() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        boolean full = map.size() >= maxKeys;
+        long interval = full ? Math.min(idleNanos, FULL_SWEEP_INTERVAL) : idleNanos;
+        if (now - last >= interval && lastSweep.compareAndSet(last, now)) {
+            map.values().removeIf(v -> now - lastActive.applyAsLong(v) >= idleNanos);
+        }
+        if (map.size() >= maxKeys) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        Oldest oldest = new Oldest();
+        Spliterator<Map.Entry<K, V>> range = randomRange();
+        while (oldest.sampled < SAMPLE_SIZE && range.tryAdvance(oldest)) {
+        }
+        // 随机的一段不足SAMPLE_SIZE个时从头补足
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while (oldest.sampled < SAMPLE_SIZE && iterator.hasNext()) {
+            oldest.accept(iterator.next());
+        }
+        if (oldest.key != null) {
+            map.remove(oldest.key, oldest.value);
+        }
+    }
+
+    /**
+     * 对map的spliterator随机二分，得到随机位置的一段，代价和map大小的对数成正比。
+     * 每次都从头抽样时，淘汰总是落在哈希表前面的几个桶上
+     */
+    private Spliterator<Map.Entry<K, V>> randomRange() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Spliterator<Map.Entry<K, V>> range = map.entrySet().spliterator();
+        while (range.estimateSize() > SAMPLE_SIZE * 2) {
+            Spliterator<Map.Entry<K, V>> prefix = range.trySplit();
+            if (prefix == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                range = prefix;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * 样本中最久没有活跃的key
+     */
+    private class Oldest implements Consumer<Map.Entry<K, V>> {
+
+        private K key;
+
+        private V value;
+
+        private long time;
+
+        private int sampled;
+
+        @Override
+        public void accept(Map.Entry<K, V> entry) {
+            long t = lastActive.applyAsLong(entry.getValue());
+            if (key == null || t - time < 0) {
+                key = entry.getKey();
+                value = entry.getValue();
+                time = t;
+            }
+            sampled++;
+        }
+    }
+
+}
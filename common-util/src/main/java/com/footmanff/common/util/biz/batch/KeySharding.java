@@ -0,0 +1,97 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+/**
+ * 热点key分片，把一个逻辑key上的请求随机分散到N个分片bucket上，每个分片独立合并、并行执行批处理
+ * <p/>
+ * 分片数不超过1的key不做分片，直接使用原key，也不会缓存任何数据；分片key为(key, 分片号)组成的{@link ShardKey}，
+ * 和任何字符串key都不相等，调用方的key本身带有分隔符时也不会和其他key的分片混在一起。
+ * 分片key按key缓存，避免每次调用创建对象，缓存的key数量超过上限以后新出现的分片key不再缓存
+ */
+public class KeySharding {
+
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    private final ToIntFunction<String> shardCount;
+
+    private final ConcurrentHashMap<String, ShardKey[]> shardKeyMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param shardCount 根据key返回分片数
+     */
+    public KeySharding(ToIntFunction<String> shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * 为当前调用选择一个分片
+     *
+     * @return 分片对应的bucket key，不分片时返回key本身，分片时返回{@link ShardKey}
+     */
+    public Object select(String key) {
+        int n = shardCount.applyAsInt(key);
+        if (n <= 1) {
+            return key;
+        }
+        ShardKey[] shardKeys = shardKeyMap.get(key);
+        if (shardKeys == null || shardKeys.length != n) {
+            shardKeys = new ShardKey[n];
+            for (int i = 0; i < n; i++) {
+                shardKeys[i] = new ShardKey(key, i);
+            }
+            if (shardKeyMap.size() < MAX_CACHED_KEYS || shardKeyMap.containsKey(key)) {
+                shardKeyMap.put(key, shardKeys);
+            }
+        }
+        return shardKeys[ThreadLocalRandom.current().nextInt(n)];
+    }
+
+    /**
+     * 一个key的一个分片
+     */
+    public static final class ShardKey {
+
+        private final String key;
+
+        private final int shard;
+
+        ShardKey(String key, int shard) {
+            this.key = key;
+            this.shard = shard;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ShardKey)) {
+                return false;
+            }
+            ShardKey that = (ShardKey) o;
+            return shard == that.shard && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + shard;
+        }
+
+        @Override
+        public String toString() {
+            return key + "#" + shard;
+        }
+    }
+
+}
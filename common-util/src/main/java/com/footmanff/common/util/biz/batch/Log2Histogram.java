@@ -0,0 +1,78 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按2的幂分桶的直方图，第i个桶记录[2^(i-1), 2^i)范围内的值，计数使用LongAdder，记录时不存在竞争
+ * <p/>
+ * 分位数取所在桶的上界，误差不超过一倍，用于观察分布以及数量级
+ */
+public class Log2Histogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    public Log2Histogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long c = count.sum();
+        return c == 0 ? 0D : (double) sum.sum() / c;
+    }
+
+    /**
+     * 分位数
+     *
+     * @param percentile 0到100之间，例如99代表P99
+     * @return 分位数所在桶的上界，没有数据时返回0
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100D, Math.max(0D, percentile)) / 100D);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKET_COUNT - 1);
+    }
+
+    private static long upperBound(int index) {
+        if (index == 0) {
+            return 0L;
+        }
+        return index >= 63 ? Long.MAX_VALUE : (1L << index) - 1;
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 固定大小的无锁对象池，取出、归还都不分配内存。池空时返回null由调用方创建，池满时归还的对象直接丢弃
+ */
+class ObjectPool<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    ObjectPool(int size) {
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    E acquire() {
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            E e = slots.get(index);
+            if (e != null && slots.compareAndSet(index, e, null)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    void release(E e) {
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, e)) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * bucket内的无锁任务累积，每个任务可以附带一个等待者（等待结果的线程、条件或者future）和一个时间戳
+ * <p/>
+ * 加入任务时只对控制字做一次CAS占用槽位，然后写入分段数组中自己的槽位，多个线程往同一个热点bucket加入任务时不再串行等锁；
+ * 批处理前通过控制字上的封闭位拒绝后续加入，再等待已经占用槽位的线程写完，一次性取出全部任务。
+ * <p/>
+ * 控制字：高32位epoch，每次{@link #reset()}加一，用于识别复用以后的新一批；第31位封闭位；第30位未开启位；低30位任务数。
+ * 分段数组按需创建，reset以后保留复用。第k段容纳{@code 8 << k}个任务，段索引只有14个槽位，
+ * 只有几个任务的bucket只分配一个8个槽位的段，不会因为容量上限预先分配大数组
+ */
+public class TaskAccumulator<T, W> {
+
+    /**
+     * 已经封闭或者已满，需要换一个bucket
+     */
+    public static final int SEALED = -1;
+
+    /**
+     * 还没有开启，或者已经被重置为新的一批
+     */
+    public static final int NOT_OPEN = -2;
+
+    /**
+     * 第一段的大小为{@code 1 << FIRST_SHIFT}，之后每段翻倍
+     */
+    private static final int FIRST_SHIFT = 3;
+
+    private static final int MAX_CHUNKS = 14;
+
+    /**
+     * 一批最多容纳的任务数
+     */
+    public static final int CAPACITY = ((1 << MAX_CHUNKS) - 1) << FIRST_SHIFT;
+
+    private static final long SEALED_BIT = 1L << 31;
+
+    private static final long NOT_OPEN_BIT = 1L << 30;
+
+    private static final long COUNT_MASK = NOT_OPEN_BIT - 1;
+
+    private final AtomicLong ctl;
+
+    private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    public TaskAccumulator() {
+        this(true);
+    }
+
+    /**
+     * @param open false: 创建以后处于未开启状态，{@link #open(long)}以后才接收任务
+     */
+    public TaskAccumulator(boolean open) {
+        this.ctl = new AtomicLong(open ? 0L : NOT_OPEN_BIT);
+    }
+
+    public long epoch() {
+        return ctl.get() >>> 32;
+    }
+
+    /**
+     * 开启epoch对应的一批
+     */
+    public boolean open(long epoch) {
+        while (true) {
+            long c = ctl.get();
+            if ((c >>> 32) != epoch || (c & NOT_OPEN_BIT) == 0) {
+                return false;
+            }
+            if (ctl.compareAndSet(c, c & ~NOT_OPEN_BIT)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 加入任务
+     *
+     * @return 加入以后的任务数，或者{@link #SEALED}、{@link #NOT_OPEN}
+     */
+    public int add(T task, W waiter, long stamp) {
+        return add(-1L, task, waiter, stamp);
+    }
+
+    /**
+     * 只有当前epoch和传入的一致时才加入任务
+     *
+     * @param epoch 调用方看到的epoch，-1代表不校验
+     * @return 加入以后的任务数，或者{@link #SEALED}、{@link #NOT_OPEN}
+     */
+    public int add(long epoch, T task, W waiter, long stamp) {
+        while (true) {
+            long c = ctl.get();
+            if ((epoch >= 0 && (c >>> 32) != epoch) || (c & NOT_OPEN_BIT) != 0) {
+                return NOT_OPEN;
+            }
+            int index = (int) (c & COUNT_MASK);
+            if ((c & SEALED_BIT) != 0 || index >= CAPACITY) {
+                return SEALED;
+            }
+            if (ctl.compareAndSet(c, c + 1)) {
+                int chunkIndex = chunkIndex(index);
+                Chunk chunk = chunk(chunkIndex);
+                int offset = offset(index, chunkIndex);
+                chunk.tasks[offset] = task;
+                chunk.waiters[offset] = waiter;
+                chunk.stamps[offset] = stamp;
+                // 发布槽位，读取方看到ready以后才读取其他字段
+                chunk.ready.lazySet(offset, 1);
+                return index + 1;
+            }
+        }
+    }
+
+    /**
+     * 封闭，之后的加入都会失败
+     *
+     * @return 封闭时的任务数，已经封闭或者没有开启时返回-1
+     */
+    public int seal() {
+        return seal(-1L);
+    }
+
+    /**
+     * 只有当前epoch和传入的一致时才封闭
+     *
+     * @param epoch 发起封闭时看到的epoch，-1代表不校验
+     * @return 封闭时的任务数，已经封闭、没有开启或者epoch不一致时返回-1
+     */
+    public int seal(long epoch) {
+        while (true) {
+            long c = ctl.get();
+            if ((epoch >= 0 && (c >>> 32) != epoch) || (c & (NOT_OPEN_BIT | SEALED_BIT)) != 0) {
+                return -1;
+            }
+            if (ctl.compareAndSet(c, c | SEALED_BIT)) {
+                return (int) (c & COUNT_MASK);
+            }
+        }
+    }
+
+    public boolean isSealed() {
+        return (ctl.get() & SEALED_BIT) != 0;
+    }
+
+    /**
+     * 已经占用槽位的任务数
+     */
+    public int size() {
+        return (int) Math.min(ctl.get() & COUNT_MASK, CAPACITY);
+    }
+
+    /**
+     * 读取第index个任务，仅在封闭以后调用，槽位还没有写完时等待写完
+     */
+    @SuppressWarnings("unchecked")
+    public T getTask(int index) {
+        int chunkIndex = chunkIndex(index);
+        int offset = offset(index, chunkIndex);
+        return (T) published(chunkIndex, offset).tasks[offset];
+    }
+
+    /**
+     * @see #getTask(int)
+     */
+    @SuppressWarnings("unchecked")
+    public W getWaiter(int index) {
+        int chunkIndex = chunkIndex(index);
+        int offset = offset(index, chunkIndex);
+        return (W) published(chunkIndex, offset).waiters[offset];
+    }
+
+    /**
+     * @see #getTask(int)
+     */
+    public long getStamp(int index) {
+        int chunkIndex = chunkIndex(index);
+        int offset = offset(index, chunkIndex);
+        return published(chunkIndex, offset).stamps[offset];
+    }
+
+    /**
+     * 取出前size个任务，仅在封闭以后调用
+     */
+    public List<T> taskList(int size) {
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(getTask(i));
+        }
+        return list;
+    }
+
+    /**
+     * 清空并进入下一个epoch，重置以后处于未开启状态。仅在没有其他线程读取槽位时调用
+     */
+    public void reset() {
+        long c = ctl.get();
+        int size = (int) Math.min(c & COUNT_MASK, CAPACITY);
+        for (int i = 0; i < size; i++) {
+            int chunkIndex = chunkIndex(i);
+            Chunk chunk = chunks.get(chunkIndex);
+            int offset = offset(i, chunkIndex);
+            chunk.tasks[offset] = null;
+            chunk.waiters[offset] = null;
+            chunk.ready.set(offset, 0);
+        }
+        ctl.set((((c >>> 32) + 1) << 32) | NOT_OPEN_BIT);
+    }
+
+    /**
+     * 第k段从{@code ((1 << k) - 1) << FIRST_SHIFT}开始
+     */
+    private static int chunkIndex(int index) {
+        return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_SHIFT) + 1);
+    }
+
+    private static int offset(int index, int chunkIndex) {
+        return index - (((1 << chunkIndex) - 1) << FIRST_SHIFT);
+    }
+
+    private Chunk chunk(int chunkIndex) {
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            Chunk created = new Chunk(1 << (chunkIndex + FIRST_SHIFT));
+            chunk = chunks.compareAndSet(chunkIndex, null, created) ? created : chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    private Chunk published(int chunkIndex, int offset) {
+        Chunk chunk;
+        // 占用槽位和写入槽位之间只有几条指令，自旋等待即可
+        while ((chunk = chunks.get(chunkIndex)) == null || chunk.ready.get(offset) == 0) {
+            Thread.yield();
+        }
+        return chunk;
+    }
+
+    private static class Chunk {
+
+        private final Object[] tasks;
+
+        private final Object[] waiters;
+
+        private final long[] stamps;
+
+        private final AtomicIntegerArray ready;
+
+        Chunk(int size) {
+            this.tasks = new Object[size];
+            this.waiters = new Object[size];
+            this.stamps = new long[size];
+            this.ready = new AtomicIntegerArray(size);
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.footmanff.common.util.biz.batch;
+
+/**
+ * 任务在预写日志中的编解码，重启回放时用decode还原任务。同一个日志目录前后使用的编码需要兼容
+ */
+public interface WalCodec<T> {
+
+    byte[] encode(T task);
+
+    T decode(byte[] bytes);
+
+}
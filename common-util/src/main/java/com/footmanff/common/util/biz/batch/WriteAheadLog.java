@@ -0,0 +1,364 @@
+package com.footmanff.common.util.biz.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的预写日志，{@link WriteBehindBatchExecutor}用来在批处理执行前保存任务
+ * <p/>
+ * 日志由目录下多个固定大小的段文件组成，文件名为递增的段号。每条记录按8字节对齐，格式为：
+ * 状态(1字节) + 保留(3字节) + key长度(4字节) + 内容长度(4字节) + 校验和(4字节) + key + 内容。
+ * 状态为{@link #WRITTEN}代表已写入未执行，为{@link #FLUSHED}代表批处理已经成功；写入时先写长度、校验和和内容，最后写状态
+ * <p/>
+ * 位置通过CAS分配，多条记录并发写入、完成的顺序和位置顺序无关，进程崩溃时前面的记录可能还没有写完而后面的记录已经写完。
+ * 恢复时扫描整个段：状态有效并且校验和一致的是完整记录，按长度跳过；否则是没有写完的记录或者空白，按8字节向后查找下一条完整记录
+ * <p/>
+ * 写入通过CAS在当前段内分配位置，不加锁，只有当前段写满切换新段时加锁。不再写入的段中所有记录都已经flush时删除文件
+ * <p/>
+ * 写入的内容在进程崩溃以后由操作系统写回文件，不会丢失；没有调用{@link #sync()}时，机器掉电会丢失还没有写回磁盘的页
+ */
+class WriteAheadLog {
+
+    static final byte WRITTEN = 1;
+
+    static final byte FLUSHED = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int ALIGN = 8;
+
+    private static final String SUFFIX = ".wal";
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final ReentrantLock rollLock = new ReentrantLock();
+
+    private volatile Segment current;
+
+    /**
+     * 还没有删除的段，包括当前段和还有未flush记录的旧段
+     */
+    private final Set<Segment> liveSegments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 启动时从已有段文件中读到的未flush记录
+     */
+    private final List<Record> recovered = new ArrayList<>();
+
+    /**
+     * @param dir         日志目录，不存在时创建
+     * @param segmentSize 段文件大小，字节，单条记录不能超过段大小
+     */
+    WriteAheadLog(File dir, int segmentSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize需大于" + HEADER_SIZE);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("无法创建日志目录: " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        long lastSeq = -1L;
+        for (File file : listSegmentFiles(dir)) {
+            Segment segment = openSegment(file, parseSeq(file), (int) file.length());
+            lastSeq = segment.seq;
+            recover(segment);
+            // 旧的段不再写入
+            segment.sealed = true;
+            segment.tryDelete();
+        }
+        this.current = openSegment(segmentFile(lastSeq + 1), lastSeq + 1, segmentSize);
+    }
+
+    /**
+     * 启动时读到的未flush记录，按写入顺序排列
+     */
+    List<Record> recovered() {
+        return recovered;
+    }
+
+    /**
+     * 追加一条记录，返回以后记录已经写入映射内存
+     */
+    Record append(String key, byte[] payload) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = align(HEADER_SIZE + keyBytes.length + payload.length);
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("记录大小" + size + "超过段大小" + segmentSize);
+        }
+        while (true) {
+            Segment segment = current;
+            int offset = segment.reserve(size);
+            if (offset < 0) {
+                roll(segment);
+                continue;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + 4);
+            buffer.putInt(keyBytes.length);
+            buffer.putInt(payload.length);
+            buffer.putInt(checksum(keyBytes, payload));
+            buffer.put(keyBytes);
+            buffer.put(payload);
+            // volatile写保证前面的内容先于状态写入
+            segment.appended.incrementAndGet();
+            segment.buffer.put(offset, WRITTEN);
+            return new Record(segment, offset, key, null);
+        }
+    }
+
+    /**
+     * 标记记录已经flush，段内记录全部flush并且段不再写入时删除段文件
+     */
+    void markFlushed(Record record) {
+        Segment segment = record.segment;
+        segment.buffer.put(record.offset, FLUSHED);
+        if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+            segment.tryDelete();
+        }
+    }
+
+    /**
+     * 把所有没有删除的段在映射内存中的修改强制写回磁盘。已经切换走的段中可能还有刚写完的记录，不能只写回当前段
+     */
+    void sync() {
+        for (Segment segment : liveSegments) {
+            if (!segment.deleted.get()) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * 关闭所有段的文件，之后不能再写入
+     */
+    void close() {
+        current.sealed = true;
+        for (Segment segment : liveSegments) {
+            segment.closeChannel();
+        }
+    }
+
+    private void roll(Segment full) {
+        rollLock.lock();
+        try {
+            if (current != full) {
+                return;
+            }
+            current = openSegment(segmentFile(full.seq + 1), full.seq + 1, segmentSize);
+        } finally {
+            rollLock.unlock();
+        }
+        full.sealed = true;
+        if (full.pending.get() == 0) {
+            full.tryDelete();
+        }
+    }
+
+    private void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segment.capacity) {
+            byte state = buffer.get(offset);
+            if (state != WRITTEN && state != FLUSHED) {
+                // 空白或者没有写完的记录，查找下一个对齐位置
+                offset += ALIGN;
+                continue;
+            }
+            int keyLength = buffer.getInt(offset + 4);
+            int payloadLength = buffer.getInt(offset + 8);
+            if (keyLength < 0 || payloadLength < 0
+                    || (long) offset + HEADER_SIZE + keyLength + payloadLength > segment.capacity) {
+                offset += ALIGN;
+                continue;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            byte[] payload = new byte[payloadLength];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset + HEADER_SIZE);
+            slice.get(keyBytes);
+            slice.get(payload);
+            if (buffer.getInt(offset + 12) != checksum(keyBytes, payload)) {
+                // 没有写完的记录中恰好出现了状态字节
+                offset += ALIGN;
+                continue;
+            }
+            if (state == WRITTEN) {
+                segment.pending.incrementAndGet();
+                recovered.add(new Record(segment, offset, new String(keyBytes, StandardCharsets.UTF_8), payload));
+            }
+            offset += align(HEADER_SIZE + keyLength + payloadLength);
+        }
+        segment.position.set(segment.capacity);
+    }
+
+    private static int align(int size) {
+        return (size + ALIGN - 1) & -ALIGN;
+    }
+
+    private static int checksum(byte[] keyBytes, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%020d", seq) + SUFFIX);
+    }
+
+    private static long parseSeq(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static List<File> listSegmentFiles(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // 段号补零到固定长度，按文件名排序即按段号排序
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private Segment openSegment(File file, long seq, int size) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Segment segment = new Segment(seq, file, channel, buffer, size, liveSegments);
+            liveSegments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 一个段文件
+     */
+    static class Segment {
+
+        private final long seq;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private final int capacity;
+
+        /**
+         * 下一条记录的写入位置
+         */
+        private final AtomicInteger position = new AtomicInteger();
+
+        /**
+         * 已经写入还没有flush的记录数，分配位置时就计入，避免写到一半的段被删除
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final AtomicInteger appended = new AtomicInteger();
+
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        private final Set<Segment> liveSegments;
+
+        /**
+         * 段是否不再写入
+         */
+        private volatile boolean sealed;
+
+        Segment(long seq, File file, FileChannel channel, MappedByteBuffer buffer, int capacity,
+                Set<Segment> liveSegments) {
+            this.seq = seq;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.liveSegments = liveSegments;
+        }
+
+        /**
+         * 分配size字节，返回记录的起始位置，段剩余空间不够时返回-1
+         */
+        int reserve(int size) {
+            pending.incrementAndGet();
+            int offset = position.getAndAdd(size);
+            if (offset + size > capacity || offset < 0) {
+                // 保持position不小于capacity，避免int溢出以后重新分配
+                position.set(capacity);
+                if (pending.decrementAndGet() == 0 && sealed) {
+                    tryDelete();
+                }
+                return -1;
+            }
+            return offset;
+        }
+
+        void tryDelete() {
+            if (pending.get() != 0 || !deleted.compareAndSet(false, true)) {
+                return;
+            }
+            liveSegments.remove(this);
+            closeChannel();
+            file.delete();
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 一条记录在日志中的位置，回放的记录带有key和内容
+     */
+    static class Record {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final String key;
+
+        private final byte[] payload;
+
+        Record(Segment segment, int offset, String key, byte[] payload) {
+            this.segment = segment;
+            this.offset = offset;
+            this.key = key;
+            this.payload = payload;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.footmanff.common.util.biz.batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 延迟写合并执行。{@link #execute(String, Object)}把任务追加到本地内存映射的预写日志以后立即返回，
+ * 批处理由flusher线程异步执行，批处理成功以后日志中的记录标记为已flush
+ * <p/>
+ * 批处理失败的任务间隔retryDelay重新提交，默认直到成功；设置{@link #setMaxAttempts(int)}以后失败次数达到上限的任务交给
+ * {@link DeadLetterHandler}，不再重试。进程退出时没有flush的任务留在日志中，下次使用同一个日志目录创建执行器时重新提交执行。
+ * 因此同一个任务可能执行多次，合并函数需要幂等
+ * <p/>
+ * 失败隔离为{@link FailureIsolation#NONE}时一个无法处理的任务会让同一批的其他任务一起失败、一起消耗重试次数，
+ * 需要配合{@link FailureIsolation#BISECT}或者{@link FailureIsolation#PER_ITEM}，只有失败的任务进入死信
+ * <p/>
+ * 合并函数没有返回值，在创建执行器时传入，重启回放的任务同样使用这个函数。窗口、批次大小、flusher线程、分片、
+ * 失败隔离、流水线合并等都沿用{@link BatchDispatcher}
+ */
+public class WriteBehindBatchExecutor<T> {
+
+    private final Logger logger = LoggerFactory.getLogger(WriteBehindBatchExecutor.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final long DEFAULT_RETRY_DELAY = 1000L;
+
+    private static final long DEFAULT_CLOSE_TIMEOUT = 30000L;
+
+    private final int batchLimit;
+
+    private final long maxTime;
+
+    private final long retryDelay;
+
+    private final WalCodec<T> codec;
+
+    private final Consumer<BatchExecParam<T>> bachFunc;
+
+    private final BatchEachFunction<LoggedTask<T>, Boolean> eachFunc;
+
+    private final WriteAheadLog log;
+
+    private final BatchDispatcher<LoggedTask<T>, Boolean> dispatcher;
+
+    private final BatchMetrics metrics;
+
+    private final ScheduledThreadPoolExecutor retryExecutor;
+
+    /**
+     * 一个任务最多执行的次数，0代表不限制
+     */
+    private volatile int maxAttempts;
+
+    private volatile DeadLetterHandler<T> deadLetterHandler;
+
+    private volatile boolean closed;
+
+    public WriteBehindBatchExecutor(File dir, WalCodec<T> codec, int batchLimit, long maxTime,
+                                    Consumer<BatchExecParam<T>> bachFunc) {
+        this(dir, codec, batchLimit, maxTime, bachFunc, new BatchOptions(), DEFAULT_SEGMENT_SIZE, DEFAULT_RETRY_DELAY);
+    }
+
+    /**
+     * 创建执行器，日志目录中还没有flush的任务立即重新提交
+     *
+     * @param dir         预写日志目录，同一时间只能被一个执行器使用
+     * @param codec       任务的编解码
+     * @param batchLimit  一个批次最大合并任务数
+     * @param maxTime     bucket从第一个任务进入开始最长等待的时间，毫秒
+     * @param bachFunc    合并函数，抛出异常时整批任务稍后重试
+     * @param options     flusher线程、分片、失败隔离等配置
+     * @param segmentSize 日志段文件大小，字节
+     * @param retryDelay  批处理失败以后重新提交的间隔，毫秒
+     */
+    public WriteBehindBatchExecutor(File dir, WalCodec<T> codec, int batchLimit, long maxTime,
+                                    Consumer<BatchExecParam<T>> bachFunc, BatchOptions options,
+                                    int segmentSize, long retryDelay) {
+        if (batchLimit <= 0) {
+            throw new IllegalArgumentException("batchLimit需大于0");
+        }
+        if (maxTime <= 0) {
+            throw new IllegalArgumentException("maxTime需大于0");
+        }
+        if (retryDelay <= 0) {
+            throw new IllegalArgumentException("retryDelay需大于0");
+        }
+        this.batchLimit = batchLimit;
+        this.maxTime = maxTime;
+        this.retryDelay = retryDelay;
+        this.codec = codec;
+        this.bachFunc = bachFunc;
+        this.eachFunc = BatchEachFunction.of(this::apply);
+        this.metrics = options.getMetrics() == null ? new DefaultBatchMetrics() : options.getMetrics();
+        this.dispatcher = new BatchDispatcher<>("WriteBehindBatchExecutor-flusher-", options, metrics);
+        this.retryExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "WriteBehindBatchExecutor-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.log = new WriteAheadLog(dir, segmentSize);
+        for (WriteAheadLog.Record record : log.recovered()) {
+            submit(new LoggedTask<>(record, codec.decode(record.getPayload())), record.getKey());
+        }
+    }
+
+    /**
+     * 把任务写入预写日志，返回以后任务不会因为进程崩溃丢失，批处理异步执行
+     *
+     * @param key  执行批次唯一键
+     * @param task 当前执行参数
+     */
+    public void execute(String key, T task) {
+        if (closed) {
+            throw new IllegalStateException("执行器已经关闭");
+        }
+        WriteAheadLog.Record record = log.append(key, codec.encode(task));
+        submit(new LoggedTask<>(record, task), key);
+    }
+
+    /**
+     * 把日志的修改强制写回磁盘，调用以后已经返回的任务在机器掉电以后也不会丢失
+     */
+    public void sync() {
+        log.sync();
+    }
+
+    /**
+     * 关闭执行器，最多等待30秒让已经开始的批处理完成，见{@link #close(long, TimeUnit)}
+     */
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭执行器，不再接收新任务，也不再重试失败的任务。还在等待窗口或者排队的批次不再执行，已经开始的批处理等待其完成，
+     * 然后关闭日志。没有flush的任务留在日志中，下次创建执行器时回放
+     *
+     * @param timeout 等待已经开始的批处理完成的最长时间
+     */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        retryExecutor.shutdownNow();
+        dispatcher.shutdown();
+        if (!dispatcher.awaitTermination(timeout, unit)) {
+            logger.warn("延迟写批处理" + unit.toMillis(timeout) + "ms内没有结束，直接关闭日志");
+        }
+        log.sync();
+        log.close();
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置一个任务最多执行的次数，包括第一次执行，默认0不限制。达到次数以后仍然失败的任务交给{@link DeadLetterHandler}，
+     * 没有设置时只记录日志，任务留在预写日志中等待下次创建执行器时回放
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts不能小于0");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * 设置重试次数用完以后的处理
+     */
+    public void setDeadLetterHandler(DeadLetterHandler<T> deadLetterHandler) {
+        this.deadLetterHandler = deadLetterHandler;
+    }
+
+    private void submit(LoggedTask<T> loggedTask, String key) {
+        dispatcher.submitEach(key, loggedTask, maxTime, batchLimit, eachFunc).whenComplete((r, e) -> {
+            if (e == null) {
+                log.markFlushed(loggedTask.record);
+            } else if (!closed) {
+                int maxAttempts = this.maxAttempts;
+                if (maxAttempts > 0 && ++loggedTask.attempts >= maxAttempts) {
+                    deadLetter(loggedTask, key, e);
+                    return;
+                }
+                logger.warn("延迟写批处理失败，" + retryDelay + "ms以后重试, key: " + key, e);
+                retryExecutor.schedule(() -> submit(loggedTask, key), retryDelay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void deadLetter(LoggedTask<T> loggedTask, String key, Throwable e) {
+        DeadLetterHandler<T> handler = this.deadLetterHandler;
+        if (handler == null) {
+            logger.error("延迟写批处理失败" + loggedTask.attempts + "次，不再重试, key: " + key, e);
+            return;
+        }
+        try {
+            handler.handle(key, loggedTask.task, e);
+        } catch (Throwable t) {
+            logger.error("延迟写死信处理失败，任务留在日志中等待回放, key: " + key, t);
+            return;
+        }
+        log.markFlushed(loggedTask.record);
+    }
+
+    private Boolean apply(BatchExecParam<LoggedTask<T>> param) {
+        List<LoggedTask<T>> loggedTaskList = param.getTaskList();
+        List<T> taskList = new ArrayList<>(loggedTaskList.size());
+        for (LoggedTask<T> loggedTask : loggedTaskList) {
+            taskList.add(loggedTask.task);
+        }
+        BatchExecParam<T> batchExecParam = new BatchExecParam<>(param.getExecKey(), taskList, param.getCacheKey());
+        batchExecParam.setBucketId(param.getBucketId());
+        bachFunc.accept(batchExecParam);
+        return Boolean.TRUE;
+    }
+
+    /**
+     * 已经写入日志的任务，作为bucket中的任务
+     */
+    static class LoggedTask<T> {
+
+        private final WriteAheadLog.Record record;
+
+        private final T task;
+
+        /**
+         * 已经失败的次数，只在任务的future完成时修改，同一时间只有一个线程访问
+         */
+        private int attempts;
+
+        LoggedTask(WriteAheadLog.Record record, T task) {
+            this.record = record;
+            this.task = task;
+        }
+    }
+
+}
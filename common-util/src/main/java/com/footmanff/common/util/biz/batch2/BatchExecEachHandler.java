@@ -0,0 +1,14 @@
+package com.footmanff.common.util.biz.batch2;
+
+import com.footmanff.common.util.biz.batch.BatchExecResult;
+
+import java.util.List;
+
+/**
+ * 按任务返回结果的批处理，返回的结果列表和{@link BatchExecParam#getTaskList()}按下标一一对应
+ */
+public interface BatchExecEachHandler<T, R> {
+
+    List<BatchExecResult<R>> processEach(BatchExecParam<T> param);
+
+}
@@ -1,11 +1,20 @@
 package com.footmanff.common.util.biz.batch2;
 
-import com.footmanff.common.util.biz.CountableFutureTask;
+import com.footmanff.common.util.biz.batch.BatchDispatcher;
+import com.footmanff.common.util.biz.batch.BatchExecResult;
+import com.footmanff.common.util.biz.batch.BatchMetrics;
+import com.footmanff.common.util.biz.batch.DefaultBatchMetrics;
 import com.footmanff.common.util.biz.batch3.DataConsumer;
 import com.footmanff.common.util.biz.batch3.DataProducer;
+import com.footmanff.common.util.biz.batch3.OverflowPolicy;
+import com.footmanff.common.util.biz.batch3.WaitStrategy;
 import com.footmanff.common.util.collection.CollectionUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class BatchExecutor<T, R> {
@@ -18,7 +27,26 @@ public class BatchExecutor<T, R> {
 
     private DataProducer<Task<T, R>> dataProducer;
 
+    private volatile BatchMetrics metrics = new DefaultBatchMetrics();
+
+    private volatile Executor keyExecutor;
+
     public BatchExecutor(int batchLimit, long maxTime, int bufferCount, int bufferSize, int thread, BatchExecHandler<T, R> handler) {
+        this(param -> {
+            // 所有任务共享同一个结果
+            BatchExecResult<R> result = new BatchExecResult<>(handler.process(param));
+            return Collections.nCopies(param.getTaskList().size(), result);
+        }, batchLimit, maxTime, bufferCount, bufferSize, thread);
+    }
+
+    /**
+     * 创建按任务返回结果的执行器，每个任务的结果或者异常只交给提交该任务的调用方
+     */
+    public static <T, R> BatchExecutor<T, R> ofEach(int batchLimit, long maxTime, int bufferCount, int bufferSize, int thread, BatchExecEachHandler<T, R> handler) {
+        return new BatchExecutor<>(handler, batchLimit, maxTime, bufferCount, bufferSize, thread);
+    }
+
+    private BatchExecutor(BatchExecEachHandler<T, R> handler, int batchLimit, long maxTime, int bufferCount, int bufferSize, int thread) {
         this.batchLimit = batchLimit;
         this.maxTime = maxTime;
         this.thread = thread;
@@ -26,19 +54,33 @@ public class BatchExecutor<T, R> {
         dataProducer = new DataProducer<>(bufferCount, bufferSize, "BatchExecutor-", new DataConsumer<Task<T, R>>() {
             @Override
             public void consume(List<Task<T, R>> dataList) {
-                Task<T, R> task = dataList.get(0);
-                List<T> taskList = CollectionUtil.collect(dataList, e -> e.getTask());
-                BatchExecParam<T> param = new BatchExecParam<>(task.getKey(), taskList);
-                R result = handler.process(param);
-                for (Task<T, R> data : dataList) {
-                    data.getCountableFutureTask().set(result);
+                // 一个队列中可能有多个key的任务，按key分组以后分别执行批处理
+                Map<String, List<Task<T, R>>> groupMap = new LinkedHashMap<>();
+                for (Task<T, R> task : dataList) {
+                    groupMap.computeIfAbsent(task.getKey(), k -> new ArrayList<>()).add(task);
                 }
+                Executor keyExecutor = BatchExecutor.this.keyExecutor;
+                if (keyExecutor == null || groupMap.size() == 1) {
+                    for (Map.Entry<String, List<Task<T, R>>> entry : groupMap.entrySet()) {
+                        processGroup(handler, entry.getKey(), entry.getValue());
+                    }
+                    return;
+                }
+                // 多个key并行执行，等待全部完成以后再消费下一批，保证同一个key的批次按顺序执行
+                List<CompletableFuture<Void>> futureList = new ArrayList<>(groupMap.size());
+                for (Map.Entry<String, List<Task<T, R>>> entry : groupMap.entrySet()) {
+                    futureList.add(CompletableFuture.runAsync(
+                            () -> processGroup(handler, entry.getKey(), entry.getValue()), keyExecutor));
+                }
+                CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[0])).join();
             }
 
             @Override
             public void onError(List<Task<T, R>> dataList, Throwable t) {
                 for (Task<T, R> data : dataList) {
-                    data.getCountableFutureTask().set(t);
+                    if (!data.getFuture().isDone()) {
+                        fail(data, t);
+                    }
                 }
             }
         }, maxTime, (key, limit) -> {
@@ -47,32 +89,166 @@ public class BatchExecutor<T, R> {
             hashCode = Math.abs(hashCode);
             return hashCode % limit;
         });
+        dataProducer.setOverflowListener(new MetricsOverflowListener(metrics));
         dataProducer.start(thread, batchLimit);
     }
 
+    /**
+     * 执行一个key的批处理，批处理异常只影响这个key的任务
+     */
+    private void processGroup(BatchExecEachHandler<T, R> handler, String key, List<Task<T, R>> groupList) {
+        // 调用方已经超时放弃的任务不再执行
+        List<Task<T, R>> dataList = new ArrayList<>(groupList.size());
+        for (Task<T, R> data : groupList) {
+            if (!data.getFuture().isDone()) {
+                dataList.add(data);
+            }
+        }
+        if (dataList.isEmpty()) {
+            return;
+        }
+        List<T> taskList = CollectionUtil.collect(dataList, e -> e.getTask());
+        BatchExecParam<T> param = new BatchExecParam<>(key, taskList);
+        BatchMetrics metrics = this.metrics;
+        // 一次取满batchLimit视为提前执行，否则是消费周期到期执行
+        metrics.recordFlush(dataList.size() >= batchLimit);
+        long s = System.nanoTime();
+        List<BatchExecResult<R>> resultList;
+        try {
+            resultList = handler.processEach(param);
+        } catch (Throwable t) {
+            for (Task<T, R> data : dataList) {
+                fail(data, t);
+            }
+            return;
+        } finally {
+            metrics.recordBatch(key, dataList.size(), System.nanoTime() - s);
+        }
+        if (resultList == null || resultList.size() != dataList.size()) {
+            IllegalStateException e = new IllegalStateException("批处理返回的结果数与任务数不一致, taskSize: " + dataList.size()
+                    + " resultSize: " + (resultList == null ? null : resultList.size()));
+            for (Task<T, R> data : dataList) {
+                fail(data, e);
+            }
+            return;
+        }
+        for (int i = 0; i < dataList.size(); i++) {
+            BatchExecResult<R> result = resultList.get(i);
+            // 先记录再完成future，调用方拿到结果时统计已经可见
+            metrics.recordWait(System.nanoTime() - dataList.get(i).getSubmitTime());
+            if (result == null) {
+                dataList.get(i).getFuture().complete(null);
+            } else if (result.isSuccess()) {
+                dataList.get(i).getFuture().complete(result.getResult());
+            } else {
+                dataList.get(i).getFuture().completeExceptionally(result.getExp());
+            }
+        }
+    }
+
+    private void fail(Task<T, R> data, Throwable t) {
+        metrics.recordWait(System.nanoTime() - data.getSubmitTime());
+        data.getFuture().completeExceptionally(t);
+    }
+
+    /**
+     * 合并执行，阻塞等待当前任务的结果
+     *
+     * @see #executeAsync(String, Object)
+     */
     public R execute(String key, T task) {
-        CountableFutureTask<Object> futureTask = new CountableFutureTask<>(() -> null);
+        return BatchDispatcher.join(executeAsync(key, task));
+    }
 
+    /**
+     * 合并执行，最多等待timeout。超时或者被中断时取消future：任务还没有被消费时批处理跳过这个任务，
+     * 已经开始批处理时结果直接丢弃
+     *
+     * @param timeout 最长等待时间，包含排队和批处理耗时
+     * @param unit    timeout的单位
+     * @throws RuntimeException 超时时cause为{@link TimeoutException}，被中断时cause为{@link InterruptedException}
+     */
+    public R execute(String key, T task, long timeout, TimeUnit unit) {
+        CompletableFuture<R> future = executeAsync(key, task);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            future.cancel(false);
+            metrics.recordTimeout();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 异步合并执行，立即返回future，不阻塞调用线程。future由消费线程在批处理完成时直接完成
+     *
+     * @param key  执行批次唯一键
+     * @param task 当前执行参数
+     * @return 当前任务的结果，批处理异常或者任务的结果为异常时future异常完成；队列已满并且按{@link OverflowPolicy}处理以后
+     * 仍然没有放入时，future以{@link RejectedExecutionException}异常完成，同步的execute抛出以它为cause的RuntimeException
+     */
+    public CompletableFuture<R> executeAsync(String key, T task) {
         Task<T, R> innerTask = new Task<>();
-        innerTask.setCountableFutureTask(futureTask);
+        innerTask.setFuture(new CompletableFuture<>());
+        innerTask.setKey(key);
         innerTask.setTask(task);
+        innerTask.setSubmitTime(System.nanoTime());
 
         boolean add = dataProducer.produce(key, innerTask, 10);
         if (!add) {
-            throw new RuntimeException("add fail");
-        }
-        try {
-            Object result = futureTask.get();
-            if (result instanceof Throwable) {
-                throw new RuntimeException((Throwable) result);
-            } else {
-                return (R) result;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+            innerTask.getFuture().completeExceptionally(new RejectedExecutionException("队列已满，任务没有放入, key: " + key));
         }
+        return innerTask.getFuture();
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置统计，队列已满的溢出事件同样记录到这个统计
+     */
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = metrics;
+        dataProducer.setOverflowListener(new MetricsOverflowListener(metrics));
+    }
+
+    /**
+     * 设置消费线程没有数据时的等待方式，默认固定睡眠maxTime毫秒，空闲期间积累的任务在下一轮合并执行。
+     * 使用生产者唤醒的方式时空闲以后的第一个任务几乎没有延迟，但空闲期间不再等待积累
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        dataProducer.setWaitStrategy(waitStrategy);
+    }
+
+    /**
+     * 设置队列已满时的处理方式，默认{@link OverflowPolicy#FAIL}。{@link OverflowPolicy#DROP_OLDEST}丢弃的任务异常完成，
+     * {@link OverflowPolicy#CALLER_RUNS}由调用方线程直接执行只包含当前任务的批处理
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        dataProducer.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * 设置{@link OverflowPolicy#BLOCK}时的最长等待时间
+     */
+    public void setBlockTimeout(long timeout, TimeUnit unit) {
+        dataProducer.setBlockTimeout(timeout, unit);
+    }
+
+    /**
+     * 设置多个key并行执行批处理的线程池，为null时由消费线程逐个key执行
+     * <p/>
+     * 一个队列被多个key共用，一次取出的任务按key分组，每个key各自执行一次批处理；
+     * 设置以后一次取出多个key时并行执行，消费线程等待这一批全部完成
+     */
+    public void setKeyExecutor(Executor keyExecutor) {
+        this.keyExecutor = keyExecutor;
     }
 
 }
@@ -0,0 +1,52 @@
+package com.footmanff.common.util.biz.batch2;
+
+import com.footmanff.common.util.biz.batch.BatchMetrics;
+import com.footmanff.common.util.biz.batch3.OverflowListener;
+
+/**
+ * 把队列已满的事件转发到执行器的{@link BatchMetrics}，溢出事件和合并统计在同一处可见
+ */
+class MetricsOverflowListener implements OverflowListener {
+
+    private final BatchMetrics metrics;
+
+    MetricsOverflowListener(BatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onOverflow() {
+        metrics.recordOverflow();
+    }
+
+    @Override
+    public void onBlocked() {
+        metrics.recordBlocked();
+    }
+
+    @Override
+    public void onRedirected() {
+        metrics.recordRedirected();
+    }
+
+    @Override
+    public void onDropped() {
+        metrics.recordDropped();
+    }
+
+    @Override
+    public void onCallerRuns() {
+        metrics.recordCallerRuns();
+    }
+
+    @Override
+    public void onSpilled() {
+        metrics.recordSpilled();
+    }
+
+    @Override
+    public void onRejected() {
+        metrics.recordRejected();
+    }
+
+}
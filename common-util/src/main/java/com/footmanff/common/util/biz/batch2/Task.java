@@ -1,15 +1,21 @@
 package com.footmanff.common.util.biz.batch2;
 
-import com.footmanff.common.util.biz.CountableFutureTask;
 import lombok.Data;
 
+import java.util.concurrent.CompletableFuture;
+
 @Data
 public class Task<T, R> {
 
-    private CountableFutureTask<Object> countableFutureTask;
+    private CompletableFuture<R> future;
     
     private String key;
     
     private T task;
 
+    /**
+     * 提交时间，纳秒
+     */
+    private long submitTime;
+
 }
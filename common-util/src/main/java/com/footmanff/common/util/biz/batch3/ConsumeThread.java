@@ -4,6 +4,9 @@ import com.footmanff.common.util.collection.CollectionUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class ConsumeThread<T> extends Thread {
 
@@ -17,16 +20,34 @@ public class ConsumeThread<T> extends Thread {
 
     private final Integer consumeBathLimit;
 
+    private volatile WaitStrategy waitStrategy;
+
+    /**
+     * 是否正在park等待生产者唤醒
+     */
+    private volatile boolean waiting;
+
     public ConsumeThread(String threadName, DataConsumer<T> dataConsumer, long consumeCycle) {
         this(threadName, dataConsumer, consumeCycle, null);
     }
 
+    /**
+     * 没有数据时固定睡眠consumeCycle毫秒
+     */
     public ConsumeThread(String threadName, DataConsumer<T> dataConsumer, long consumeCycle, Integer consumeBathLimit) {
+        this(threadName, dataConsumer, consumeCycle, consumeBathLimit,
+                WaitStrategy.timedBackoff(consumeCycle, consumeCycle, TimeUnit.MILLISECONDS));
+    }
+
+    public ConsumeThread(String threadName, DataConsumer<T> dataConsumer, long consumeCycle, Integer consumeBathLimit,
+                         WaitStrategy waitStrategy) {
         super(threadName);
         this.dataConsumer = dataConsumer;
         this.consumeCycle = consumeCycle;
-        this.dataBuffers = new ArrayList<>();
+        // 启动以后还可能加入溢出队列
+        this.dataBuffers = new CopyOnWriteArrayList<>();
         this.consumeBathLimit = consumeBathLimit;
+        this.waitStrategy = waitStrategy;
     }
 
     public void addDataBuffer(DataQueue<T> dataBuffer) {
@@ -39,17 +60,60 @@ public class ConsumeThread<T> extends Thread {
 
         final List<T> consumeList = new ArrayList<T>(1500);
 
+        int idleCount = 0;
         while (running) {
-            if (!consume(consumeList)) {
-                try {
-                    Thread.sleep(consumeCycle);
-                } catch (InterruptedException e) {
+            if (consume(consumeList)) {
+                idleCount = 0;
+            } else {
+                if (idleCount < Integer.MAX_VALUE) {
+                    idleCount++;
                 }
+                waitStrategy.await(this, idleCount);
             }
         }
         consume(consumeList);
     }
 
+    /**
+     * 负责的队列中是否有数据
+     */
+    public boolean hasData() {
+        for (DataQueue<T> dataBuffer : dataBuffers) {
+            if (dataBuffer.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生产者写入以后唤醒当前消费线程
+     */
+    public void signal() {
+        waitStrategy.signal(this);
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * 切换等待方式，下一次空闲时生效
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        // 正在按旧的方式等待时立即唤醒
+        LockSupport.unpark(this);
+    }
+
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    void setWaiting(boolean waiting) {
+        this.waiting = waiting;
+    }
+
     private boolean consume(List<T> dataList) {
         boolean result = false;
         for (DataQueue<T> dataBuffer : dataBuffers) {
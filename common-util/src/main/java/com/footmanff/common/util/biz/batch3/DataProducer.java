@@ -1,22 +1,68 @@
 package com.footmanff.common.util.biz.batch3;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DataProducer<T> {
 
+    /**
+     * {@link OverflowPolicy#DROP_OLDEST}时最多丢弃的次数，并发写入的生产者一直抢占腾出的空间时不再继续丢弃，按写入失败处理
+     */
+    private static final int MAX_DROP_ATTEMPTS = 8;
+
     private long consumeCycle;
 
     private final String prefix;
 
     private final DataQueue<T>[] dataBuffers;
 
-    private ConsumeThread<T>[] consumeThreads;
+    private volatile ConsumeThread<T>[] consumeThreads;
+
+    /**
+     * 每个队列对应的消费线程，启动以后才有值
+     */
+    private volatile ConsumeThread<T>[] bufferConsumers;
+
+    private volatile WaitStrategy waitStrategy;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.FAIL;
+
+    /**
+     * {@link OverflowPolicy#BLOCK}时最长等待时间，纳秒
+     */
+    private volatile long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * {@link OverflowPolicy#SPILL}时溢出队列的大小，0代表和普通队列相同
+     */
+    private volatile int spillSize;
+
+    /**
+     * 溢出队列，启动时或者启动以后第一次设置{@link OverflowPolicy#SPILL}时创建
+     */
+    private volatile DataQueue<T> spillBuffer;
+
+    private volatile ConsumeThread<T> spillConsumer;
+
+    /**
+     * 队列已满的事件回调，按溢出处理结果分别通知
+     */
+    private volatile OverflowListener overflowListener = new OverflowCounter();
+
+    /**
+     * 队列大小
+     */
+    private final int bufferSize;
 
     private final DataConsumer<T> dataConsumer;
 
     private final ReentrantLock lock;
 
-    private boolean running;
+    private volatile boolean running;
 
     private QueueAssigner queueAssigner;
 
@@ -38,33 +84,228 @@ public class DataProducer<T> {
         for (int i = 0; i < bufferCount; i++) {
             dataBuffers[i] = new DataQueue(bufferSize);
         }
+        this.bufferSize = bufferSize;
         this.dataConsumer = dataConsumer;
         this.prefix = threadPrefix;
         this.lock = new ReentrantLock();
         this.queueAssigner = queueAssigner;
         this.consumeCycle = consumeCycle;
+        this.waitStrategy = WaitStrategy.timedBackoff(consumeCycle, consumeCycle, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * 生产一条数据
+     * 设置消费线程没有数据时的等待方式，默认固定睡眠consumeCycle毫秒。启动以后设置时对已经启动的消费线程同样生效
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        ConsumeThread<T>[] threads = this.consumeThreads;
+        if (threads != null) {
+            for (ConsumeThread<T> consumeThread : threads) {
+                consumeThread.setWaitStrategy(waitStrategy);
+            }
+        }
+    }
+
+    /**
+     * 设置队列已满时的处理方式，默认{@link OverflowPolicy#FAIL}
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            lock.lock();
+            try {
+                if (running) {
+                    createSpillBuffer(consumeThreads[0]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 设置{@link OverflowPolicy#BLOCK}时的最长等待时间，默认100毫秒
+     */
+    public void setBlockTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout需大于0");
+        }
+        this.blockTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * 设置{@link OverflowPolicy#SPILL}时溢出队列的大小，默认和普通队列相同，创建溢出队列之前设置有效
+     */
+    public void setSpillSize(int spillSize) {
+        if (spillSize <= 0) {
+            throw new IllegalArgumentException("spillSize需大于0");
+        }
+        this.spillSize = spillSize;
+    }
+
+    public OverflowListener getOverflowListener() {
+        return overflowListener;
+    }
+
+    /**
+     * 设置队列已满的事件回调，默认{@link OverflowCounter}计数
+     */
+    public void setOverflowListener(OverflowListener overflowListener) {
+        this.overflowListener = overflowListener;
+    }
+
+    /**
+     * 生产一条数据，队列已满时重试retryCountDown次，仍然写不进去时按{@link OverflowPolicy}处理
      */
     public boolean produce(String key, T data, int retryCountDown) {
         int index = queueAssigner.assign(key, dataBuffers.length);
 
         for (; retryCountDown > 0; retryCountDown--) {
             if (dataBuffers[index].save(data)) {
+                signal(index);
                 return true;
             }
         }
-        return false;
+        return overflow(index, data);
     }
 
     /**
-     * 生产一条数据
+     * 生产一条数据，队列已满时按{@link OverflowPolicy}处理
      */
     public boolean produce(String key, T data) {
         int index = queueAssigner.assign(key, dataBuffers.length);
-        return dataBuffers[index].save(data);
+        if (dataBuffers[index].save(data)) {
+            signal(index);
+            return true;
+        }
+        return overflow(index, data);
+    }
+
+    /**
+     * 队列已满时按配置的方式处理
+     *
+     * @return 数据是否被接收，包括写入队列和由生产者线程直接消费
+     */
+    private boolean overflow(int index, T data) {
+        OverflowListener listener = this.overflowListener;
+        listener.onOverflow();
+        boolean accepted;
+        switch (overflowPolicy) {
+            case BLOCK:
+                accepted = saveBlocking(index, data);
+                if (accepted) {
+                    listener.onBlocked();
+                }
+                break;
+            case TRY_NEXT_BUFFER:
+                accepted = saveToNext(index, data);
+                if (accepted) {
+                    listener.onRedirected();
+                }
+                break;
+            case DROP_OLDEST:
+                accepted = saveDroppingOldest(index, data);
+                break;
+            case CALLER_RUNS:
+                consumeInCaller(data);
+                listener.onCallerRuns();
+                accepted = true;
+                break;
+            case SPILL:
+                accepted = saveToSpill(data);
+                if (accepted) {
+                    listener.onSpilled();
+                }
+                break;
+            default:
+                accepted = false;
+        }
+        if (!accepted) {
+            listener.onRejected();
+        }
+        return accepted;
+    }
+
+    private boolean saveBlocking(int index, T data) {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (true) {
+            // 消费线程可能正在等待，唤醒以后尽快腾出空间
+            signal(index);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, TimeUnit.MICROSECONDS.toNanos(50)));
+            if (dataBuffers[index].save(data)) {
+                signal(index);
+                return true;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean saveToNext(int index, T data) {
+        for (int i = 1; i < dataBuffers.length; i++) {
+            int next = (index + i) % dataBuffers.length;
+            if (dataBuffers[next].save(data)) {
+                signal(next);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean saveDroppingOldest(int index, T data) {
+        DataQueue<T> dataBuffer = dataBuffers[index];
+        for (int attempt = 0; attempt < MAX_DROP_ATTEMPTS; attempt++) {
+            T oldest = dataBuffer.poll();
+            if (oldest != null) {
+                overflowListener.onDropped();
+                try {
+                    dataConsumer.onError(Collections.singletonList(oldest), new RejectedExecutionException("队列已满，丢弃最早的数据"));
+                } catch (Throwable ignore) {
+                    // 丢弃通知失败不影响写入
+                }
+            }
+            if (dataBuffer.save(data)) {
+                signal(index);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void consumeInCaller(T data) {
+        List<T> dataList = Collections.singletonList(data);
+        try {
+            dataConsumer.consume(dataList);
+        } catch (Throwable e) {
+            dataConsumer.onError(dataList, e);
+        }
+    }
+
+    private boolean saveToSpill(T data) {
+        DataQueue<T> spill = spillBuffer;
+        if (spill == null || !spill.save(data)) {
+            return false;
+        }
+        ConsumeThread<T> consumer = spillConsumer;
+        if (consumer != null) {
+            consumer.signal();
+        }
+        return true;
+    }
+
+    /**
+     * 唤醒队列对应的消费线程
+     */
+    private void signal(int index) {
+        ConsumeThread<T>[] consumers = bufferConsumers;
+        if (consumers != null) {
+            consumers[index].signal();
+        }
     }
 
     /**
@@ -76,15 +317,24 @@ public class DataProducer<T> {
         }
         lock.lock();
         try {
-            consumeThreads = new ConsumeThread[threadNum];
+            @SuppressWarnings("unchecked")
+            ConsumeThread<T>[] threads = (ConsumeThread<T>[]) new ConsumeThread<?>[threadNum];
             for (int j = 0; j < threadNum; j++) {
-                consumeThreads[j] = new ConsumeThread<T>("DataProducer-Consumer-" + prefix + j, dataConsumer, consumeCycle, consumeBathLimit);
+                threads[j] = new ConsumeThread<T>("DataProducer-Consumer-" + prefix + j, dataConsumer, consumeCycle, consumeBathLimit, waitStrategy);
             }
+            @SuppressWarnings("unchecked")
+            ConsumeThread<T>[] consumers = (ConsumeThread<T>[]) new ConsumeThread<?>[dataBuffers.length];
             for (int idx = 0; idx < dataBuffers.length; idx++) {
-                int consumerIndex = idx % consumeThreads.length;
-                consumeThreads[consumerIndex].addDataBuffer(dataBuffers[idx]);
+                int consumerIndex = idx % threads.length;
+                threads[consumerIndex].addDataBuffer(dataBuffers[idx]);
+                consumers[idx] = threads[consumerIndex];
+            }
+            if (overflowPolicy == OverflowPolicy.SPILL) {
+                createSpillBuffer(threads[0]);
             }
-            for (ConsumeThread<T> consumeThread : consumeThreads) {
+            consumeThreads = threads;
+            bufferConsumers = consumers;
+            for (ConsumeThread<T> consumeThread : threads) {
                 consumeThread.start();
             }
             running = true;
@@ -93,6 +343,19 @@ public class DataProducer<T> {
         }
     }
 
+    /**
+     * 创建溢出队列，由第一个消费线程和普通队列一起消费，调用方持有lock
+     */
+    private void createSpillBuffer(ConsumeThread<T> consumer) {
+        if (spillBuffer != null) {
+            return;
+        }
+        DataQueue<T> spill = new DataQueue<>(spillSize > 0 ? spillSize : bufferSize);
+        consumer.addDataBuffer(spill);
+        spillConsumer = consumer;
+        spillBuffer = spill;
+    }
+
     public boolean isRunning() {
         return running;
     }
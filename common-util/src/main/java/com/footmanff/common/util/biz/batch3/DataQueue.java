@@ -1,53 +1,124 @@
 package com.footmanff.common.util.biz.batch3;
 
-import com.footmanff.common.util.biz.AtomicRangeInteger;
-
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * 有界环形队列，多个生产者写入，消费者按写入顺序取出
+ * <p/>
+ * 每个槽位预先分配一个序号，写入时通过CAS推进写序号占用槽位，写完数据以后更新槽位序号发布；
+ * 取出时通过CAS推进读序号，取完以后把槽位序号推进一圈交还给生产者。读写都不扫描整个数组，
+ * 一次取出的代价和取出的数量成正比，空队列只读一个槽位
+ * <p/>
+ * 容量向上取整为2的幂，最小为2
+ */
 public class DataQueue<T> {
 
     private final Object[] queue;
 
-    private final AtomicRangeInteger index;
+    /**
+     * 槽位序号：等于写序号时可以写入，等于写序号+1时可以读取
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final int capacity;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong head = new AtomicLong();
 
     public DataQueue(int size) {
-        queue = new Object[size];
-        index = new AtomicRangeInteger(0, size);
+        if (size <= 0) {
+            throw new IllegalArgumentException("size需大于0");
+        }
+        // 容量为1时已发布槽位的序号和下一个写序号相同，写满以后仍能写入，至少为2
+        capacity = size <= 2 ? 2 : Integer.highestOneBit(size - 1) << 1;
+        mask = capacity - 1;
+        queue = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
     }
 
     /**
      * 保存数据到缓存，缓存满则放弃写入
      */
     public boolean save(T data) {
-        int i = index.getAndIncrement();
-        if (queue[i] != null) {
-            return false;
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & mask);
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    queue[i] = data;
+                    // 有序写，数据先于序号对消费者可见
+                    sequences.lazySet(i, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 槽位上一圈的数据还没有被取走
+                return false;
+            } else {
+                pos = tail.get();
+            }
         }
-        queue[i] = data;
-        return true;
     }
 
-    public void obtainData(List<T> dataList, int limit) {
-        int c = 0;
-        for (int i = 0; i < queue.length; i++) {
-            if (queue[i] != null) {
-                dataList.add((T) queue[i]);
-                queue[i] = null;
-                c ++;
-                if (c >= limit) {
-                    return;
+    /**
+     * 取出最早写入的一条数据，没有数据时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = head.get();
+        while (true) {
+            int i = (int) (pos & mask);
+            long diff = sequences.get(i) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T data = (T) queue[i];
+                    queue[i] = null;
+                    sequences.lazySet(i, pos + capacity);
+                    return data;
                 }
+                pos = head.get();
+            } else if (diff < 0) {
+                // 槽位还没有写入，或者写入还没有发布
+                return null;
+            } else {
+                pos = head.get();
             }
         }
     }
 
-    public void obtainData(List<T> dataList) {
-        for (int i = 0; i < queue.length; i++) {
-            if (queue[i] != null) {
-                dataList.add((T) queue[i]);
-                queue[i] = null;
+    public void obtainData(List<T> dataList, int limit) {
+        for (int c = 0; c < limit; c++) {
+            T data = poll();
+            if (data == null) {
+                return;
             }
+            dataList.add(data);
         }
     }
 
+    public void obtainData(List<T> dataList) {
+        obtainData(dataList, capacity);
+    }
+
+    /**
+     * 当前数据条数，并发写入、取出时为近似值
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) Math.min(size, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
 }
@@ -0,0 +1,87 @@
+package com.footmanff.common.util.biz.batch3;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 默认的队列已满统计，按处理结果分别计数
+ */
+public class OverflowCounter implements OverflowListener {
+
+    private final LongAdder overflowCount = new LongAdder();
+
+    private final LongAdder blockedCount = new LongAdder();
+
+    private final LongAdder redirectedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final LongAdder callerRunsCount = new LongAdder();
+
+    private final LongAdder spilledCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    @Override
+    public void onOverflow() {
+        overflowCount.increment();
+    }
+
+    @Override
+    public void onBlocked() {
+        blockedCount.increment();
+    }
+
+    @Override
+    public void onRedirected() {
+        redirectedCount.increment();
+    }
+
+    @Override
+    public void onDropped() {
+        droppedCount.increment();
+    }
+
+    @Override
+    public void onCallerRuns() {
+        callerRunsCount.increment();
+    }
+
+    @Override
+    public void onSpilled() {
+        spilledCount.increment();
+    }
+
+    @Override
+    public void onRejected() {
+        rejectedCount.increment();
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    public long getRedirectedCount() {
+        return redirectedCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getCallerRunsCount() {
+        return callerRunsCount.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.footmanff.common.util.biz.batch3;
+
+/**
+ * 队列已满的事件回调，按{@link OverflowPolicy}的处理结果分别通知，默认不处理。回调在生产者线程上执行，需要足够轻量
+ */
+public interface OverflowListener {
+
+    /**
+     * 生产数据时队列已满，之后按溢出处理方式通知处理结果
+     */
+    default void onOverflow() {
+    }
+
+    /**
+     * 队列已满时等待以后写入成功
+     */
+    default void onBlocked() {
+    }
+
+    /**
+     * 队列已满时写入了其他队列
+     */
+    default void onRedirected() {
+    }
+
+    /**
+     * 队列已满时丢弃了一条最早的数据
+     */
+    default void onDropped() {
+    }
+
+    /**
+     * 队列已满时由生产者线程直接消费
+     */
+    default void onCallerRuns() {
+    }
+
+    /**
+     * 队列已满时写入了溢出队列
+     */
+    default void onSpilled() {
+    }
+
+    /**
+     * 队列已满并且按溢出处理方式处理以后仍然没有写入
+     */
+    default void onRejected() {
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.footmanff.common.util.biz.batch3;
+
+/**
+ * 生产数据时key对应的队列已满的处理方式
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 直接返回写入失败
+     */
+    FAIL,
+
+    /**
+     * 唤醒消费线程并等待队列腾出空间，最长等待blockTimeout，超时返回写入失败
+     */
+    BLOCK,
+
+    /**
+     * 依次尝试后面的队列，全部已满时返回写入失败。数据可能被不同的消费线程取出，同一个key的数据不再保证按写入顺序消费
+     */
+    TRY_NEXT_BUFFER,
+
+    /**
+     * 丢弃队列中最早的数据再写入，被丢弃的数据交给{@link DataConsumer#onError(java.util.List, Throwable)}。
+     * 腾出的空间被并发写入的生产者抢占时重新丢弃，最多丢弃若干次，仍然写不进去时返回写入失败
+     */
+    DROP_OLDEST,
+
+    /**
+     * 由生产者线程直接调用{@link DataConsumer#consume(java.util.List)}消费这条数据，消费者需要支持多线程并发调用
+     */
+    CALLER_RUNS,
+
+    /**
+     * 写入所有key共用的溢出队列，由第一个消费线程消费；溢出队列也已满时返回写入失败
+     */
+    SPILL
+
+}
@@ -0,0 +1,58 @@
+package com.footmanff.common.util.biz.batch3;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 自旋、yield以后park，由生产者unpark唤醒
+ *
+ * @see WaitStrategy#blocking(long, java.util.concurrent.TimeUnit)
+ * @see WaitStrategy#spinYieldPark(int, int, long, java.util.concurrent.TimeUnit)
+ */
+class ParkWaitStrategy implements WaitStrategy {
+
+    private final int spins;
+
+    private final int yields;
+
+    private final long maxParkNanos;
+
+    ParkWaitStrategy(int spins, int yields, long maxParkNanos) {
+        if (spins < 0 || yields < 0) {
+            throw new IllegalArgumentException("spins、yields不能小于0");
+        }
+        if (maxParkNanos <= 0) {
+            throw new IllegalArgumentException("maxPark需大于0");
+        }
+        this.spins = spins;
+        this.yields = yields;
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    @Override
+    public void await(ConsumeThread<?> consumer, int idleCount) {
+        if (idleCount <= spins) {
+            return;
+        }
+        if (idleCount - spins <= yields) {
+            Thread.yield();
+            return;
+        }
+        // 先声明要park再检查队列，检查之后写入的生产者能看到waiting并唤醒，错过唤醒时由maxParkNanos兜底
+        consumer.setWaiting(true);
+        try {
+            if (!consumer.hasData()) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+        } finally {
+            consumer.setWaiting(false);
+        }
+    }
+
+    @Override
+    public void signal(ConsumeThread<?> consumer) {
+        if (consumer.isWaiting()) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.footmanff.common.util.biz.batch3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 消费线程一轮没有取到数据时的等待方式
+ */
+public interface WaitStrategy {
+
+    /**
+     * 一轮没有取到任何数据以后调用，返回以后消费线程开始下一轮
+     *
+     * @param consumer  当前消费线程
+     * @param idleCount 连续没有取到数据的轮数，从1开始
+     */
+    void await(ConsumeThread<?> consumer, int idleCount);
+
+    /**
+     * 生产者写入数据以后调用，用于唤醒等待中的消费线程，默认不处理
+     */
+    default void signal(ConsumeThread<?> consumer) {
+    }
+
+    /**
+     * 生产者唤醒：消费线程没有数据时park，生产者写入以后unpark。空闲时不占用CPU，空闲以后第一条数据的延迟在微秒级。
+     * 极端并发下可能错过唤醒，maxPark为兜底的最长park时间
+     */
+    static WaitStrategy blocking(long maxPark, TimeUnit unit) {
+        return new ParkWaitStrategy(0, 0, unit.toNanos(maxPark));
+    }
+
+    /**
+     * 先自旋spins轮，再yield yields轮，之后和{@link #blocking(long, TimeUnit)}一样park等待生产者唤醒。
+     * 连续到达的数据在自旋阶段就被取走，不需要唤醒
+     */
+    static WaitStrategy spinYieldPark(int spins, int yields, long maxPark, TimeUnit unit) {
+        return new ParkWaitStrategy(spins, yields, unit.toNanos(maxPark));
+    }
+
+    /**
+     * 一直自旋，不让出CPU，延迟最低，每个消费线程占满一个核，只用于延迟敏感并且消费线程数少的场景
+     */
+    static WaitStrategy busySpin() {
+        return (consumer, idleCount) -> {
+        };
+    }
+
+    /**
+     * 退避睡眠：第一次空闲睡眠min，之后每次翻倍，最长max，取到数据以后重新从min开始。
+     * min和max相同时为固定周期轮询。睡眠时间为0时只让出CPU，min和max都为0时等同于原来consumeCycle为0时的sleep(0)
+     */
+    static WaitStrategy timedBackoff(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("需满足0 <= min <= max");
+        }
+        long minNanos = unit.toNanos(min);
+        long maxNanos = unit.toNanos(max);
+        return (consumer, idleCount) -> {
+            long nanos = minNanos;
+            for (int i = 1; i < idleCount && nanos < maxNanos; i++) {
+                nanos = nanos == 0 ? 1 : nanos << 1;
+            }
+            nanos = Math.min(nanos, maxNanos);
+            if (nanos == 0) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(nanos);
+            }
+        };
+    }
+
+}
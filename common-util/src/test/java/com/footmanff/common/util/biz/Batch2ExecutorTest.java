@@ -0,0 +1,167 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.BatchExecResult;
+import com.footmanff.common.util.biz.batch.DefaultBatchMetrics;
+import com.footmanff.common.util.biz.batch2.BatchExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Batch2ExecutorTest {
+
+    /**
+     * 多个key共用一个队列，每次批处理只包含同一个key的任务，结果交给对应key的调用方
+     */
+    @Test
+    public void groupByKey() throws Exception {
+        AtomicInteger mixed = new AtomicInteger();
+        BatchExecutor<String, String> batchExecutor = new BatchExecutor<>(100, 10, 1, 10000, 1, param -> {
+            for (String task : param.getTaskList()) {
+                if (!task.startsWith(param.getKey() + ":")) {
+                    mixed.incrementAndGet();
+                }
+            }
+            return param.getKey();
+        });
+        ExecutorService keyExecutor = Executors.newFixedThreadPool(4);
+        batchExecutor.setKeyExecutor(keyExecutor);
+
+        int threads = 20;
+        int keyCount = 10;
+        AtomicInteger wrongResult = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int base = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        String key = "sku" + ((base + i) % keyCount);
+                        if (!key.equals(batchExecutor.execute(key, key + ":" + i))) {
+                            wrongResult.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        keyExecutor.shutdown();
+
+        assertEquals(0, mixed.get());
+        assertEquals(0, wrongResult.get());
+        assertEquals(threads * 50, ((DefaultBatchMetrics) batchExecutor.getMetrics()).getWaitCost().getCount());
+    }
+
+    /**
+     * 异步执行时每个任务的结果或者异常直接完成自己的future；超时的调用抛出TimeoutException
+     */
+    @Test
+    public void executeAsync() throws Exception {
+        BatchExecutor<Integer, Integer> batchExecutor = BatchExecutor.ofEach(100, 10, 1, 1000, 1, param -> {
+            List<BatchExecResult<Integer>> resultList = new ArrayList<>();
+            for (Integer task : param.getTaskList()) {
+                if (task < 0) {
+                    sleep(200L);
+                }
+                resultList.add(task % 2 == 0 ? new BatchExecResult<>(task * 10)
+                        : new BatchExecResult<>(new IllegalArgumentException("odd: " + task)));
+            }
+            return resultList;
+        });
+
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futureList.add(batchExecutor.executeAsync("key", i));
+        }
+        for (int i = 0; i < 100; i++) {
+            CompletableFuture<Integer> future = futureList.get(i);
+            if (i % 2 == 0) {
+                assertEquals(Integer.valueOf(i * 10), future.get(5, TimeUnit.SECONDS));
+            } else {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalArgumentException);
+                }
+            }
+        }
+
+        try {
+            batchExecutor.execute("key", -2, 20, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    /**
+     * 队列已满时executeAsync不抛出异常，返回以RejectedExecutionException异常完成的future，同步execute抛出以它为cause的异常
+     */
+    @Test
+    public void rejectedAsFailedFuture() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BatchExecutor<Integer, Integer> batchExecutor = BatchExecutor.ofEach(1, 10, 1, 2, 1, param -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            List<BatchExecResult<Integer>> resultList = new ArrayList<>();
+            for (Integer task : param.getTaskList()) {
+                resultList.add(new BatchExecResult<>(task));
+            }
+            return resultList;
+        });
+
+        // 消费线程取走第一个任务并阻塞以后再填满队列，之后队列不会再腾出空间
+        batchExecutor.executeAsync("key", 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Integer> rejected = null;
+        for (int i = 1; i < 100 && rejected == null; i++) {
+            CompletableFuture<Integer> future = batchExecutor.executeAsync("key", i);
+            if (future.isCompletedExceptionally()) {
+                rejected = future;
+            }
+        }
+        assertNotNull(rejected);
+        try {
+            rejected.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        try {
+            batchExecutor.execute("key", -1);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
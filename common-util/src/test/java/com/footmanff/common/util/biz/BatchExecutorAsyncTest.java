@@ -0,0 +1,548 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.BatchDispatcher;
+import com.footmanff.common.util.biz.batch.BatchExecParam;
+import com.footmanff.common.util.biz.batch.BatchExecResult;
+import com.footmanff.common.util.biz.batch.BatchExecutor;
+import com.footmanff.common.util.biz.batch.BatchExecutor2;
+import com.footmanff.common.util.biz.batch.BatchExecutor3;
+import com.footmanff.common.util.biz.batch.BatchOptions;
+import com.footmanff.common.util.biz.batch.Combiner;
+import com.footmanff.common.util.biz.batch.FailureIsolation;
+import com.footmanff.common.util.biz.batch.DefaultBatchMetrics;
+import com.footmanff.common.util.biz.batch.TaskAccumulator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class BatchExecutorAsyncTest {
+
+    @Test
+    public void executeAsync() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 40);
+
+        AtomicInteger totalTask = new AtomicInteger();
+        AtomicInteger batchExecCount = new AtomicInteger();
+
+        // 单个线程提交大量任务，调用线程不被阻塞
+        int c = 1000;
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+        for (int i = 0; i < c; i++) {
+            futureList.add(batchExecutor.executeAsync("someKey", i, param -> {
+                totalTask.addAndGet(param.getTaskList().size());
+                batchExecCount.incrementAndGet();
+                return "success";
+            }));
+        }
+        for (CompletableFuture<String> future : futureList) {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(c, totalTask.get());
+        assertTrue(batchExecCount.get() < c);
+    }
+
+    @Test
+    public void executeAsyncFail() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 20);
+
+        CompletableFuture<String> future = batchExecutor.executeAsync("someKey", 1, param -> {
+            throw new IllegalStateException("fail");
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void executeEachAsync() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 20);
+
+        // 奇数任务失败，每个调用方只拿到自己任务的结果
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futureList.add(batchExecutor.executeEachAsync("someKey", i, param -> {
+                List<BatchExecResult<String>> resultList = new ArrayList<>();
+                for (Integer task : param.getTaskList()) {
+                    if (task % 2 == 0) {
+                        resultList.add(new BatchExecResult<>("success" + task));
+                    } else {
+                        resultList.add(new BatchExecResult<>(new IllegalStateException("fail" + task)));
+                    }
+                }
+                return resultList;
+            }));
+        }
+        for (int i = 0; i < 10; i++) {
+            try {
+                String result = futureList.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("success" + i, result);
+            } catch (ExecutionException e) {
+                assertEquals(1, i % 2);
+                assertEquals("fail" + i, e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void flusherMode() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 20,
+                new BatchOptions().setFlusherMode(true).setFlusherThreads(2));
+
+        AtomicInteger totalTask = new AtomicInteger();
+        AtomicInteger batchExecCount = new AtomicInteger();
+        AtomicInteger successCount = new AtomicInteger();
+
+        int c = 20;
+        int execPerThread = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(c);
+        CountDownLatch countDownLatch = new CountDownLatch(c);
+        for (int i = 0; i < c; i++) {
+            pool.submit(() -> {
+                try {
+                    for (int j = 0; j < execPerThread; j++) {
+                        String result = batchExecutor.execute("someKey", j, param -> {
+                            totalTask.addAndGet(param.getTaskList().size());
+                            batchExecCount.incrementAndGet();
+                            return "success";
+                        });
+                        if ("success".equals(result)) {
+                            successCount.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(c * execPerThread, successCount.get());
+        assertEquals(c * execPerThread, totalTask.get());
+        assertTrue(batchExecCount.get() < c * execPerThread);
+    }
+
+    @Test
+    public void executeTimeout() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 200);
+
+        AtomicInteger batchExecCount = new AtomicInteger();
+        // 窗口远大于调用方的等待时间，超时的任务从bucket中撤回，不会被执行
+        try {
+            batchExecutor.execute("someKey", 1, 20, TimeUnit.MILLISECONDS, param -> {
+                batchExecCount.incrementAndGet();
+                return "success";
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Thread.sleep(400);
+        assertEquals(0, batchExecCount.get());
+        assertEquals(1, ((DefaultBatchMetrics) batchExecutor.getMetrics()).getTimeoutCount());
+
+        // 取消还没有开始批处理的future，只执行未取消的任务
+        List<Integer> executed = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> cancelled = batchExecutor.executeAsync("someKey", 2, param -> {
+            executed.addAll(param.getTaskList());
+            return "success";
+        });
+        CompletableFuture<String> future = batchExecutor.executeAsync("someKey", 3, param -> "success");
+        assertTrue(cancelled.cancel(false));
+        assertEquals("success", future.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(3), executed);
+    }
+
+    @Test
+    public void shardedHotKey() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(1000, 20,
+                new BatchOptions().setFlusherThreads(4).setShardCount(key -> "hotKey".equals(key) ? 4 : 1));
+
+        AtomicInteger totalTask = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        // 同一个热点key分散到多个分片，多个分片的批处理并行执行
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futureList.add(batchExecutor.executeAsync("hotKey", i, param -> {
+                assertEquals("hotKey", param.getExecKey());
+                totalTask.addAndGet(param.getTaskList().size());
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return "success";
+            }));
+        }
+        for (CompletableFuture<String> future : futureList) {
+            assertEquals("success", future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(200, totalTask.get());
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    /**
+     * 字面上带分隔符的key "a#0"和分片的key "a"同时执行，两个key的任务不会合并到同一个批次
+     */
+    @Test
+    public void shardKeyNotCollideWithLiteralKey() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(1000, 20,
+                new BatchOptions().setShardCount(key -> "a".equals(key) ? 4 : 1));
+        AtomicInteger mixed = new AtomicInteger();
+        Function<BatchExecParam<Integer>, String> bachFunc = param -> {
+            for (Integer task : param.getTaskList()) {
+                if ("a".equals(param.getExecKey()) != task < 1000) {
+                    mixed.incrementAndGet();
+                }
+            }
+            return param.getExecKey();
+        };
+
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futureList.add(batchExecutor.executeAsync("a", i, bachFunc));
+            futureList.add(batchExecutor.executeAsync("a#0", 1000 + i, bachFunc));
+        }
+        for (int i = 0; i < futureList.size(); i++) {
+            assertEquals(i % 2 == 0 ? "a" : "a#0", futureList.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        // 主线程模式下分片key和字面key同样使用不同的窗口
+        int threads = 10;
+        AtomicInteger wrongResult = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads * 2);
+        for (int t = 0; t < threads * 2; t++) {
+            String key = t % 2 == 0 ? "a" : "a#0";
+            int base = t % 2 == 0 ? 0 : 1000;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        if (!key.equals(batchExecutor.execute(key, base + i, bachFunc))) {
+                            wrongResult.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, wrongResult.get());
+        assertEquals(0, mixed.get());
+    }
+
+    /**
+     * BatchExecutor、BatchExecutor2的主线程模式同样按分片开窗，热点key在同一个窗口内拆成多个批次
+     */
+    @Test
+    public void shardedHotKeyLeaderMode() throws Exception {
+        BatchOptions options = new BatchOptions().setAnchoredWindow(true)
+                .setShardCount(key -> "hotKey".equals(key) ? 4 : 1);
+        BatchExecutor<Integer, String> batchExecutor = new BatchExecutor<>(options);
+        BatchExecutor2<Integer, String> batchExecutor2 = new BatchExecutor2<>(1000, 500, options);
+
+        int threads = 32;
+        AtomicInteger batchCount = new AtomicInteger();
+        AtomicInteger batchCount2 = new AtomicInteger();
+        AtomicInteger totalTask = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads * 2);
+        for (int t = 0; t < threads; t++) {
+            int task = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    batchExecutor.execute("hotKey", task, 500, 1000, param -> {
+                        assertEquals("hotKey", param.getExecKey());
+                        batchCount.incrementAndGet();
+                        totalTask.addAndGet(param.getTaskList().size());
+                        return "success";
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+            new Thread(() -> {
+                try {
+                    start.await();
+                    batchExecutor2.execute("hotKey", task, param -> {
+                        assertEquals("hotKey", param.getExecKey());
+                        batchCount2.incrementAndGet();
+                        totalTask.addAndGet(param.getTaskList().size());
+                        return "success";
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * 2, totalTask.get());
+        // 不分片时锚定窗口内的请求全部合并成一批
+        assertTrue(batchCount.get() > 1);
+        assertTrue(batchCount2.get() > 1);
+    }
+
+    @Test
+    public void combiner() throws Exception {
+        BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(10, 200);
+        // 奇数、偶数任务分别合并成一个求和的任务
+        batchExecutor.setCombiner(new Combiner<Integer>() {
+            @Override
+            public Object combineKey(Integer task) {
+                return task % 2;
+            }
+
+            @Override
+            public Integer combine(Integer left, Integer right) {
+                return left + right;
+            }
+        });
+
+        List<Integer> combinedTaskList = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futureList.add(batchExecutor.executeEachAsync("someKey", i, param -> {
+                combinedTaskList.addAll(param.getTaskList());
+                List<BatchExecResult<Integer>> resultList = new ArrayList<>();
+                for (Integer task : param.getTaskList()) {
+                    resultList.add(new BatchExecResult<>(task));
+                }
+                return resultList;
+            }));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2 == 0 ? 20 : 25, (int) futureList.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList(20, 25), combinedTaskList);
+    }
+
+    @Test
+    public void failureIsolation() throws Exception {
+        for (FailureIsolation failureIsolation : Arrays.asList(FailureIsolation.BISECT, FailureIsolation.PER_ITEM)) {
+            BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 200,
+                    new BatchOptions().setFailureIsolation(failureIsolation));
+
+            // 任务7会导致整批失败，拆分以后只有任务7失败
+            List<CompletableFuture<String>> futureList = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futureList.add(batchExecutor.executeAsync("someKey", i, param -> {
+                    if (param.getTaskList().contains(7)) {
+                        throw new IllegalStateException("fail");
+                    }
+                    return "success";
+                }));
+            }
+            for (int i = 0; i < 10; i++) {
+                try {
+                    assertEquals("success", futureList.get(i).get(5, TimeUnit.SECONDS));
+                    assertNotEquals(7, i);
+                } catch (ExecutionException e) {
+                    assertEquals(7, i);
+                    assertEquals("fail", e.getCause().getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bucketPool() throws Exception {
+        BatchExecutor3<Integer, String> batchExecutor = new BatchExecutor3<>(10, 5,
+                new BatchOptions().setFlusherMode(true).setFlusherThreads(4).setBucketPoolSize(4));
+
+        AtomicInteger totalTask = new AtomicInteger();
+        AtomicInteger successCount = new AtomicInteger();
+
+        // bucket复用时每个调用方仍然只拿到自己key对应批次的结果
+        int c = 20;
+        int execPerThread = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(c);
+        CountDownLatch countDownLatch = new CountDownLatch(c);
+        for (int i = 0; i < c; i++) {
+            String key = "key" + (i % 3);
+            pool.submit(() -> {
+                try {
+                    for (int j = 0; j < execPerThread; j++) {
+                        String result = batchExecutor.execute(key, j, param -> {
+                            totalTask.addAndGet(param.getTaskList().size());
+                            return param.getExecKey();
+                        });
+                        if (key.equals(result)) {
+                            successCount.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(c * execPerThread, successCount.get());
+        assertEquals(c * execPerThread, totalTask.get());
+    }
+
+    /**
+     * 填满bucket的线程直接执行批处理，主线程不需要等到窗口到期
+     */
+    @Test
+    public void selfFlush() throws Exception {
+        BatchOptions options2 = new BatchOptions().setSelfFlush(true);
+        BatchExecutor2<Integer, String> batchExecutor2 = new BatchExecutor2<>(10, 60000, options2);
+        selfFlush(batchExecutor2::execute, (DefaultBatchMetrics) batchExecutor2.getMetrics());
+
+        BatchOptions options3 = new BatchOptions().setSelfFlush(true);
+        BatchExecutor3<Integer, String> batchExecutor3 = new BatchExecutor3<>(10, 60000, options3);
+        selfFlush(batchExecutor3::execute, (DefaultBatchMetrics) batchExecutor3.getMetrics());
+    }
+
+    private void selfFlush(SyncExecutor executor, DefaultBatchMetrics metrics) throws Exception {
+        AtomicInteger totalTask = new AtomicInteger();
+        AtomicInteger successCount = new AtomicInteger();
+
+        // 并发数等于批次大小，批次被填满以后立即执行，不等60秒的窗口
+        int c = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(c);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch countDownLatch = new CountDownLatch(c);
+        for (int i = 0; i < c; i++) {
+            int task = i;
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    String result = executor.execute("someKey", task, param -> {
+                        totalTask.addAndGet(param.getTaskList().size());
+                        return "success";
+                    });
+                    if ("success".equals(result)) {
+                        successCount.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(countDownLatch.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(c, successCount.get());
+        assertEquals(c, totalTask.get());
+        assertEquals(0, metrics.getTimeoutFlushCount());
+    }
+
+    /**
+     * 流水线合并，同一个key执行中的批次数不超过上限，达到上限期间bucket继续累积
+     */
+    @Test
+    public void maxInFlight() throws Exception {
+        BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(10, 5,
+                new BatchOptions().setFlusherThreads(8).setMaxInFlight(2));
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger maxBatchSize = new AtomicInteger();
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            futureList.add(batchExecutor.executeAsync("someKey", i, param -> {
+                int current = running.incrementAndGet();
+                maxRunning.accumulateAndGet(current, Math::max);
+                maxBatchSize.accumulateAndGet(param.getTaskList().size(), Math::max);
+                try {
+                    Thread.sleep(20L);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return param.getTaskList().size();
+            }));
+        }
+        for (CompletableFuture<Integer> future : futureList) {
+            assertTrue(future.get(30, TimeUnit.SECONDS) > 0);
+        }
+        assertTrue(maxRunning.get() <= 2);
+        // 下游慢时批次超过batchLimit继续累积
+        assertTrue(maxBatchSize.get() > 10);
+    }
+
+    private interface SyncExecutor {
+        String execute(String key, Integer task, Function<BatchExecParam<Integer>, String> bachFunc);
+    }
+
+    /**
+     * bucket达到累积上限以后从注册表移除，flush还在等待时关闭，其中的future同样以RejectedExecutionException异常完成
+     */
+    @Test
+    public void shutdownWithFullBucketQueued() throws Exception {
+        BatchDispatcher<Integer, Integer> dispatcher = new BatchDispatcher<>("full-", 1);
+        Function<BatchExecParam<Integer>, Integer> bachFunc = param -> param.getTaskList().size();
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>();
+        // 窗口很长、batchLimit不可能达到，第一个bucket只能等到窗口到期，超过容量的任务进入新的bucket
+        for (int i = 0; i <= TaskAccumulator.CAPACITY; i++) {
+            futureList.add(dispatcher.submit("key", i, 60000L, Integer.MAX_VALUE, bachFunc));
+        }
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> future : futureList) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    /**
+     * 关闭执行器时还在等待窗口的异步任务异常完成，之后的异步调用直接失败
+     */
+    @Test
+    public void closeFailsPendingAsync() throws Exception {
+        BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(100, 60000);
+        Function<BatchExecParam<Integer>, Integer> bachFunc = param -> param.getTaskList().size();
+        CompletableFuture<Integer> pending = batchExecutor.executeAsync("key", 1, bachFunc);
+        assertTrue(batchExecutor.close(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> future : Arrays.asList(pending, batchExecutor.executeAsync("key", 2, bachFunc))) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+}
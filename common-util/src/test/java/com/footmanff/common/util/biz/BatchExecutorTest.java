@@ -73,11 +73,7 @@ public class BatchExecutorTest {
 
         System.out.println("最终 totalTask: " + totalTask.get() + " totalCall: " + totalCall.get() + " totalCost: " + totalCost.get() / 1000000L + "/" + normalCost.get() / 1000000L + " batchExecCount: " + batchExecCount);
 
-        // System.out.println("lockCost: " + batchExecutor.getLockCost().get() / 1000000L);
-
-        // System.out.println("waitCost: " + batchExecutor.getWaitCost().get() / 1000000L);
-
-        // System.out.println("signalCost: " + batchExecutor.getSignalCost().get() / 1000000L);
+        System.out.println(batchExecutor.getMetrics());
     }
 
 }
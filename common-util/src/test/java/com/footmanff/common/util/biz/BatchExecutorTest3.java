@@ -71,6 +71,8 @@ public class BatchExecutorTest3 {
         BigDecimal perCost = new BigDecimal(totalCost.get() / 1000000L).divide(BigDecimal.valueOf(execPerThread * c));
 
         System.out.println("最终 totalTask: " + totalTask.get() + " totalCall: " + totalCall.get() + " totalCost: " + totalCost.get() / 1000000L + "/" + normalCost.get() / 1000000L + " perCost: " + perCost + "ms");
+
+        System.out.println(batchExecutor3.getMetrics());
     }
 
 }
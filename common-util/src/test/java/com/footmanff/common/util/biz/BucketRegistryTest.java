@@ -0,0 +1,91 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.BucketRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BucketRegistryTest {
+
+    /**
+     * 大量key、大量窗口持续滚动，注册表的key数量始终不超过上限；key数达到上限以后，每个窗口创建的Window、批次环都成为垃圾，
+     * GC以后的堆内存不随窗口数增长
+     */
+    @Test
+    public void boundedOverMillionsOfWindows() {
+        int maxKeys = 1000;
+        BucketRegistry<Object> registry = new BucketRegistry<>(4, 16, maxKeys, 60000L);
+        BucketRegistry.Factory<Object> factory = (key, window, batch) -> new Object();
+
+        int keyCount = 50000;
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key" + i;
+        }
+
+        int windows = 2000000;
+        long baseline = 0L;
+        long maxGrowth = 0L;
+        for (int i = 0; i < windows; i++) {
+            String key = keys[i % keyCount];
+            long window = i / 100;
+            Object bucket = registry.computeIfAbsent(key, window, 0, factory);
+            assertSame(bucket, registry.computeIfAbsent(key, window, 0, factory));
+            registry.remove(key, window, 0, bucket);
+            assertTrue(registry.size() <= maxKeys);
+
+            // 前1/4用于填满注册表，之后每1/4检查一次GC以后的堆内存
+            if (i == windows / 4) {
+                baseline = usedHeap();
+            } else if (i > windows / 4 && i % (windows / 4) == 0) {
+                maxGrowth = Math.max(maxGrowth, usedHeap() - baseline);
+            }
+        }
+        maxGrowth = Math.max(maxGrowth, usedHeap() - baseline);
+        assertTrue("heap growth: " + (maxGrowth >> 10) + "KB", maxGrowth < 16L << 20);
+        // 容量满以后每个新key都要淘汰一个旧key，保留的key数停在上限附近
+        assertTrue(registry.size() > maxKeys / 2);
+        assertTrue(registry.size() <= maxKeys);
+    }
+
+    /**
+     * 锚定窗口从第一个请求开始计时，到期或者关闭以后下一个请求开启新的窗口
+     */
+    @Test
+    public void anchoredWindow() throws Exception {
+        BucketRegistry<Object> registry = new BucketRegistry<>();
+        long maxNanos = TimeUnit.MILLISECONDS.toNanos(50);
+
+        BucketRegistry.Window<Object> first = registry.anchoredWindow("key", maxNanos);
+        assertSame(first, registry.anchoredWindow("key", maxNanos));
+        assertNotSame(first, registry.anchoredWindow("other", maxNanos));
+
+        first.close();
+        BucketRegistry.Window<Object> second = registry.anchoredWindow("key", maxNanos);
+        assertEquals(first.getWindow() + 1, second.getWindow());
+        assertTrue(second.getStart() - first.getStart() >= 0);
+
+        Thread.sleep(60);
+        BucketRegistry.Window<Object> third = registry.anchoredWindow("key", maxNanos);
+        assertEquals(second.getWindow() + 1, third.getWindow());
+        assertTrue(third.getStart() - second.getStart() >= maxNanos);
+
+        // 按窗口号可以移除锚定窗口中的bucket
+        Object bucket = third.computeIfAbsent("key", 0, (key, window, batch) -> new Object());
+        assertTrue(registry.remove("key", third.getWindow(), 0, bucket));
+    }
+
+    /**
+     * GC以后的已用堆内存
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
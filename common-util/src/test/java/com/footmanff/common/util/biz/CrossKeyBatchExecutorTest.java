@@ -0,0 +1,54 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.CrossKeyBatchExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CrossKeyBatchExecutorTest {
+
+    /**
+     * 大量长尾key的任务合并成少量调用，每个调用方拿到自己key的结果
+     */
+    @Test
+    public void longTailKeys() throws Exception {
+        CrossKeyBatchExecutor<Integer, String> batchExecutor = new CrossKeyBatchExecutor<>(1000, 20);
+
+        AtomicInteger batchExecCount = new AtomicInteger();
+        AtomicInteger totalTask = new AtomicInteger();
+        int keyCount = 1000;
+        int taskPerKey = 3;
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+        List<String> keyList = new ArrayList<>();
+        for (int j = 0; j < taskPerKey; j++) {
+            for (int i = 0; i < keyCount; i++) {
+                String key = "sku" + i;
+                keyList.add(key);
+                futureList.add(batchExecutor.executeAsync(key, j, taskMap -> {
+                    batchExecCount.incrementAndGet();
+                    Map<String, String> resultMap = new HashMap<>();
+                    for (Map.Entry<String, List<Integer>> entry : taskMap.entrySet()) {
+                        totalTask.addAndGet(entry.getValue().size());
+                        resultMap.put(entry.getKey(), entry.getKey() + ":" + entry.getValue().size());
+                    }
+                    return resultMap;
+                }));
+            }
+        }
+        for (int i = 0; i < futureList.size(); i++) {
+            String result = futureList.get(i).get(10, TimeUnit.SECONDS);
+            assertTrue(result.startsWith(keyList.get(i) + ":"));
+        }
+        assertEquals(keyCount * taskPerKey, totalTask.get());
+        assertTrue(batchExecCount.get() < keyCount / 10);
+    }
+
+}
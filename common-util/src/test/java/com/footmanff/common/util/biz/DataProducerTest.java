@@ -0,0 +1,187 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch3.DataConsumer;
+import com.footmanff.common.util.biz.batch3.DataProducer;
+import com.footmanff.common.util.biz.batch3.OverflowCounter;
+import com.footmanff.common.util.biz.batch3.OverflowPolicy;
+import com.footmanff.common.util.biz.batch3.WaitStrategy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DataProducerTest {
+
+    /**
+     * 生产者唤醒的等待方式下，空闲一段时间以后写入的数据不需要等满消费周期就被取走
+     */
+    @Test
+    public void blockingWaitWakesConsumer() throws Exception {
+        for (WaitStrategy waitStrategy : new WaitStrategy[]{
+                WaitStrategy.blocking(10, TimeUnit.SECONDS),
+                WaitStrategy.spinYieldPark(100, 10, 10, TimeUnit.SECONDS)}) {
+            CountDownLatch[] latch = {new CountDownLatch(1)};
+            DataProducer<Long> dataProducer = new DataProducer<>(2, 16, "wait-", new DataConsumer<Long>() {
+                @Override
+                public void consume(List<Long> data) {
+                    latch[0].countDown();
+                }
+
+                @Override
+                public void onError(List<Long> data, Throwable t) {
+                }
+            }, 10000, (key, limit) -> 0);
+            dataProducer.setWaitStrategy(waitStrategy);
+            dataProducer.start(1, 10);
+
+            for (int round = 0; round < 5; round++) {
+                latch[0] = new CountDownLatch(1);
+                // 等消费线程进入park
+                Thread.sleep(20);
+                assertTrue(dataProducer.produce("key", System.nanoTime()));
+                assertTrue(latch[0].await(1, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    /**
+     * consumeCycle为0时消费线程空闲只让出CPU，和原来sleep(0)一样可以创建并正常消费
+     */
+    @Test
+    public void zeroConsumeCycle() throws Exception {
+        CountDownLatch latch = new CountDownLatch(100);
+        DataProducer<Integer> dataProducer = new DataProducer<>(2, 16, "zero-", new DataConsumer<Integer>() {
+            @Override
+            public void consume(List<Integer> data) {
+                for (int i = 0; i < data.size(); i++) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onError(List<Integer> data, Throwable t) {
+            }
+        }, 0, (key, limit) -> 0);
+        dataProducer.start(1, 10);
+        for (int i = 0; i < 100; i++) {
+            while (!dataProducer.produce("key", i)) {
+                Thread.yield();
+            }
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 没有启动消费线程时队列写满，按各个处理方式处理溢出的数据并分别计数
+     */
+    @Test
+    public void overflowPolicy() {
+        List<Integer> consumed = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        DataProducer<Integer> dataProducer = new DataProducer<>(2, 4, "overflow-", new DataConsumer<Integer>() {
+            @Override
+            public void consume(List<Integer> data) {
+                consumed.addAll(data);
+            }
+
+            @Override
+            public void onError(List<Integer> data, Throwable t) {
+                failed.addAll(data);
+            }
+        }, 50, (key, limit) -> 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dataProducer.produce("key", i));
+        }
+
+        assertFalse(dataProducer.produce("key", 4));
+
+        dataProducer.setOverflowPolicy(OverflowPolicy.TRY_NEXT_BUFFER);
+        assertTrue(dataProducer.produce("key", 5));
+
+        dataProducer.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        assertTrue(dataProducer.produce("key", 6));
+        assertEquals(Collections.singletonList(0), failed);
+
+        dataProducer.setOverflowPolicy(OverflowPolicy.CALLER_RUNS);
+        assertTrue(dataProducer.produce("key", 7));
+        assertEquals(Collections.singletonList(7), consumed);
+
+        OverflowCounter stats = (OverflowCounter) dataProducer.getOverflowListener();
+        assertEquals(4, stats.getOverflowCount());
+        assertEquals(1, stats.getRejectedCount());
+        assertEquals(1, stats.getRedirectedCount());
+        assertEquals(1, stats.getDroppedCount());
+        assertEquals(1, stats.getCallerRunsCount());
+    }
+
+    /**
+     * 消费线程阻塞时写入溢出队列；等待方式在超时前腾出空间时写入成功，所有数据最终都被消费
+     */
+    @Test
+    public void spillAndBlock() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        Set<Integer> consumed = ConcurrentHashMap.newKeySet();
+        DataProducer<Integer> dataProducer = new DataProducer<>(1, 4, "spill-", new DataConsumer<Integer>() {
+            @Override
+            public void consume(List<Integer> data) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                consumed.addAll(data);
+            }
+
+            @Override
+            public void onError(List<Integer> data, Throwable t) {
+            }
+        }, 1, (key, limit) -> 0);
+        dataProducer.setOverflowPolicy(OverflowPolicy.SPILL);
+        dataProducer.setSpillSize(2);
+        dataProducer.start(1, 1);
+
+        assertTrue(dataProducer.produce("key", 0));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(dataProducer.produce("key", i));
+        }
+        assertTrue(dataProducer.produce("key", 5));
+        assertTrue(dataProducer.produce("key", 6));
+        assertFalse(dataProducer.produce("key", 7));
+
+        dataProducer.setOverflowPolicy(OverflowPolicy.BLOCK);
+        dataProducer.setBlockTimeout(20, TimeUnit.MILLISECONDS);
+        assertFalse(dataProducer.produce("key", 7));
+
+        dataProducer.setBlockTimeout(5, TimeUnit.SECONDS);
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            gate.countDown();
+        }).start();
+        assertTrue(dataProducer.produce("key", 7));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumed.size() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(8, consumed.size());
+        OverflowCounter stats = (OverflowCounter) dataProducer.getOverflowListener();
+        assertEquals(2, stats.getSpilledCount());
+        assertEquals(1, stats.getBlockedCount());
+        assertEquals(2, stats.getRejectedCount());
+    }
+
+}
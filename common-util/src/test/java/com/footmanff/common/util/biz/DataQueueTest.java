@@ -0,0 +1,72 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch3.DataQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class DataQueueTest {
+
+    /**
+     * 多个生产者并发写入、一个消费者取出，数据不丢失，同一个生产者的数据按写入顺序取出
+     */
+    @Test
+    public void multiProducerFifo() throws Exception {
+        DataQueue<long[]> queue = new DataQueue<>(1000);
+        assertEquals(1024, queue.capacity());
+        int producers = 4;
+        int perProducer = 200000;
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long[] data = {producer, i};
+                    while (!queue.save(data)) {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        long[] next = new long[producers];
+        List<long[]> dataList = new ArrayList<>();
+        int total = 0;
+        while (total < producers * perProducer) {
+            queue.obtainData(dataList, 100);
+            for (long[] data : dataList) {
+                assertEquals(next[(int) data[0]]++, data[1]);
+            }
+            total += dataList.size();
+            dataList.clear();
+        }
+        done.await();
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * 写满以后写入失败，取出以后槽位可以再次写入
+     */
+    @Test
+    public void full() {
+        DataQueue<Integer> queue = new DataQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.save(i));
+        }
+        assertFalse(queue.save(4));
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.save(4));
+        List<Integer> dataList = new ArrayList<>();
+        queue.obtainData(dataList);
+        assertEquals(4, dataList.size());
+        assertEquals(Integer.valueOf(1), dataList.get(0));
+        assertEquals(Integer.valueOf(4), dataList.get(3));
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.TaskAccumulator;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TaskAccumulatorTest {
+
+    /**
+     * 多个线程并发加入的同时封闭，加入成功的任务都在封闭以后取出的列表中，加入失败的任务都不在
+     */
+    @Test
+    public void concurrentAddAndSeal() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            TaskAccumulator<Integer, Thread> accumulator = new TaskAccumulator<>();
+            Set<Integer> accepted = ConcurrentHashMap.newKeySet();
+            int threads = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                int base = t * 10000;
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 1000; i++) {
+                            if (accumulator.add(base + i, Thread.currentThread(), i) > 0) {
+                                accepted.add(base + i);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            start.countDown();
+            Thread.yield();
+            int size = accumulator.seal();
+            List<Integer> taskList = accumulator.taskList(size);
+            done.await();
+
+            assertEquals(TaskAccumulator.SEALED, accumulator.add(-1, null, 0L));
+            assertEquals(-1, accumulator.seal());
+            assertEquals(accepted, new HashSet<>(taskList));
+            assertEquals(size, taskList.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(taskList.get(i) % 10000, accumulator.getStamp(i));
+            }
+        }
+    }
+
+    /**
+     * 重置以后旧epoch的加入、封闭都失败，开启以后接收新的一批
+     */
+    @Test
+    public void resetStartsNewEpoch() {
+        TaskAccumulator<String, Object> accumulator = new TaskAccumulator<>(false);
+        long epoch = accumulator.epoch();
+        assertEquals(TaskAccumulator.NOT_OPEN, accumulator.add(epoch, "a", null, 0L));
+        assertTrue(accumulator.open(epoch));
+        assertEquals(1, accumulator.add(epoch, "a", null, 0L));
+        assertEquals(1, accumulator.seal(epoch));
+
+        accumulator.reset();
+        assertEquals(TaskAccumulator.NOT_OPEN, accumulator.add(epoch, "b", null, 0L));
+        assertTrue(accumulator.open(epoch + 1));
+        assertEquals(TaskAccumulator.NOT_OPEN, accumulator.add(epoch, "b", null, 0L));
+        assertEquals(-1, accumulator.seal(epoch));
+        assertEquals(1, accumulator.add(epoch + 1, "c", null, 0L));
+        assertEquals(1, accumulator.size());
+    }
+
+    /**
+     * 填满到容量上限，各段边界上的任务按下标取回，超过上限以后加入失败
+     */
+    @Test
+    public void fillToCapacity() {
+        TaskAccumulator<Integer, Object> accumulator = new TaskAccumulator<>();
+        for (int i = 0; i < TaskAccumulator.CAPACITY; i++) {
+            assertEquals(i + 1, accumulator.add(i, null, i));
+        }
+        assertEquals(TaskAccumulator.SEALED, accumulator.add(-1, null, 0L));
+        assertEquals(TaskAccumulator.CAPACITY, accumulator.seal());
+        for (int i = 0; i < TaskAccumulator.CAPACITY; i++) {
+            assertEquals(Integer.valueOf(i), accumulator.getTask(i));
+            assertEquals(i, accumulator.getStamp(i));
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.BatchExecutor3;
+import com.footmanff.common.util.biz.batch.BatchOptions;
+import com.footmanff.common.util.biz.batch.DefaultBatchMetrics;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 大量虚拟线程通过flusher模式合并执行，JDK不支持虚拟线程时用平台线程池代替
+ * <p/>
+ * 可以加上-Djdk.tracePinnedThreads=full运行，确认等待过程中没有钉住载体线程。
+ * 虚拟线程只有在持有monitor或者在Object.wait中阻塞时才会钉住载体线程，{@link #callersHoldNoMonitorWhileWaiting()}
+ * 用平台线程检查这一点，在没有虚拟线程的JDK上同样运行
+ */
+public class VirtualThreadBatchTest {
+
+    /**
+     * 不限制批次大小，每个key的调用方在同一个窗口内到达，调用方数量增加10倍，批次数不变，合并比例随之增加10倍
+     */
+    @Test
+    public void virtualThreadCallers() throws Exception {
+        boolean virtual = supportsVirtualThreads();
+        // 平台线程每个调用方占用一个线程，调用方数量减少到十分之一
+        int callers = virtual ? 2000 : 200;
+        run(callers);
+        run(callers * 10);
+    }
+
+    /**
+     * 批处理执行期间，等待结果的调用方线程不持有monitor，也不在Object.wait或者monitor竞争中阻塞
+     */
+    @Test
+    public void callersHoldNoMonitorWhileWaiting() throws Exception {
+        checkNoMonitor(new BatchExecutor3<>(1000, 20, new BatchOptions().setFlusherMode(true)));
+        checkNoMonitor(new BatchExecutor3<>(1000, 20));
+    }
+
+    private void checkNoMonitor(BatchExecutor3<Integer, Integer> batchExecutor) throws Exception {
+        int callers = 50;
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger success = new AtomicInteger();
+        List<Thread> threadList = new ArrayList<>(callers);
+        for (int i = 0; i < callers; i++) {
+            Thread thread = new Thread(() -> {
+                Integer result = batchExecutor.execute("key", 1, param -> {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return param.getTaskList().size();
+                });
+                if (result != null && result > 0) {
+                    success.incrementAndGet();
+                }
+            });
+            threadList.add(thread);
+            thread.start();
+        }
+        try {
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // 等所有调用方进入等待
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!allWaiting(threadList) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            for (Thread thread : threadList) {
+                ThreadInfo info = threadMXBean.getThreadInfo(new long[]{thread.getId()}, true, false)[0];
+                if (info == null) {
+                    continue;
+                }
+                assertNotEquals(Thread.State.BLOCKED, info.getThreadState());
+                assertEquals(0, info.getLockedMonitors().length);
+                for (StackTraceElement element : info.getStackTrace()) {
+                    assertFalse("Object.wait: " + thread.getName(),
+                            "java.lang.Object".equals(element.getClassName()) && "wait".equals(element.getMethodName()));
+                }
+            }
+        } finally {
+            release.countDown();
+            for (Thread thread : threadList) {
+                thread.join(5000);
+            }
+        }
+        assertEquals(callers, success.get());
+    }
+
+    private static boolean allWaiting(List<Thread> threadList) {
+        for (Thread thread : threadList) {
+            Thread.State state = thread.getState();
+            if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void run(int callers) throws Exception {
+        int keys = 10;
+        BatchExecutor3<Integer, Integer> batchExecutor = new BatchExecutor3<>(Integer.MAX_VALUE, 1000,
+                new BatchOptions().setFlusherMode(true).setFlusherThreads(16));
+        AtomicInteger totalTask = new AtomicInteger();
+
+        List<Future<Integer>> futureList = new ArrayList<>(callers);
+        ExecutorService pool = newCallerExecutor();
+        try {
+            for (int i = 0; i < callers; i++) {
+                String key = "key" + (i % keys);
+                futureList.add(pool.submit(() -> batchExecutor.execute(key, 1, param -> {
+                    totalTask.addAndGet(param.getTaskList().size());
+                    return param.getTaskList().size();
+                })));
+            }
+            for (Future<Integer> future : futureList) {
+                assertTrue(future.get(60, TimeUnit.SECONDS) > 0);
+            }
+        } finally {
+            pool.shutdown();
+            batchExecutor.close();
+        }
+
+        assertEquals(callers, totalTask.get());
+        DefaultBatchMetrics metrics = (DefaultBatchMetrics) batchExecutor.getMetrics();
+        long batchCount = metrics.getBatchSize().getCount();
+        // 所有批次都是窗口到期执行；调用方提交跨过窗口时一个key最多多出一批
+        assertEquals(batchCount, metrics.getTimeoutFlushCount());
+        assertTrue("batchCount: " + batchCount, batchCount >= keys && batchCount <= keys * 2);
+    }
+
+    private static boolean supportsVirtualThreads() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * 每个调用方一个虚拟线程，没有虚拟线程时每个调用方一个平台线程
+     */
+    private static ExecutorService newCallerExecutor() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        return executor == null ? Executors.newCachedThreadPool() : executor;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+            // JDK 21以下没有虚拟线程，或者需要开启preview
+            return null;
+        }
+    }
+
+}
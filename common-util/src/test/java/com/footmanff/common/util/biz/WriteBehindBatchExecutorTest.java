@@ -0,0 +1,190 @@
+package com.footmanff.common.util.biz;
+
+import com.footmanff.common.util.biz.batch.BatchOptions;
+import com.footmanff.common.util.biz.batch.FailureIsolation;
+import com.footmanff.common.util.biz.batch.WalCodec;
+import com.footmanff.common.util.biz.batch.WriteBehindBatchExecutor;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBatchExecutorTest {
+
+    private static final WalCodec<Integer> CODEC = new WalCodec<Integer>() {
+        @Override
+        public byte[] encode(Integer task) {
+            return ByteBuffer.allocate(4).putInt(task).array();
+        }
+
+        @Override
+        public Integer decode(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+    };
+
+    /**
+     * 下游一直失败时关闭执行器，用同一个目录重新创建执行器，没有flush的任务全部回放执行，flush以后旧的段文件被删除
+     */
+    @Test
+    public void replayAfterRestart() throws Exception {
+        File dir = Files.createTempDirectory("wal").toFile();
+        int taskCount = 500;
+
+        WriteBehindBatchExecutor<Integer> failing = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10, param -> {
+            throw new IllegalStateException("下游不可用");
+        }, new BatchOptions(), 1024, 60000L);
+        for (int i = 0; i < taskCount; i++) {
+            failing.execute("sku" + (i % 5), i);
+        }
+        Thread.sleep(100);
+        failing.close();
+        assertTrue(dir.listFiles().length > 1);
+
+        Set<Integer> flushed = ConcurrentHashMap.newKeySet();
+        WriteBehindBatchExecutor<Integer> recovered = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10,
+                param -> flushed.addAll(param.getTaskList()), new BatchOptions(), 1024, 60000L);
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((flushed.size() < taskCount || dir.listFiles().length > 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recovered.close();
+
+        assertEquals(taskCount, flushed.size());
+        // 只剩下新执行器的当前段
+        assertEquals(1, dir.listFiles().length);
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * 段中间的记录只分配了位置还没有写入时进程崩溃，恢复时跳过这条记录，后面已经写完的记录仍然回放
+     */
+    @Test
+    public void replaySkipsUnfinishedRecord() throws Exception {
+        File dir = Files.createTempDirectory("wal").toFile();
+        WriteBehindBatchExecutor<Integer> failing = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10, param -> {
+            throw new IllegalStateException("下游不可用");
+        }, new BatchOptions(), 1024, 60000L);
+        for (int i = 0; i < 3; i++) {
+            failing.execute("k", i);
+        }
+        failing.close();
+
+        // 每条记录16字节头 + 1字节key + 4字节内容，对齐到24字节，把第二条记录清零
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.seek(24);
+            raf.write(new byte[24]);
+        }
+
+        Set<Integer> flushed = ConcurrentHashMap.newKeySet();
+        WriteBehindBatchExecutor<Integer> recovered = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10,
+                param -> flushed.addAll(param.getTaskList()), new BatchOptions(), 1024, 60000L);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flushed.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recovered.close();
+
+        assertEquals(new HashSet<>(Arrays.asList(0, 2)), flushed);
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * 关闭时还在等待窗口的批次不再执行，任务留在日志中，下次创建执行器时回放
+     */
+    @Test
+    public void closeStopsPendingBatches() throws Exception {
+        File dir = Files.createTempDirectory("wal").toFile();
+        AtomicInteger executed = new AtomicInteger();
+        WriteBehindBatchExecutor<Integer> executor = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 300,
+                param -> executed.addAndGet(param.getTaskList().size()), new BatchOptions(), 1024, 60000L);
+        for (int i = 0; i < 10; i++) {
+            executor.execute("k", i);
+        }
+        executor.close();
+        Thread.sleep(500);
+        assertEquals(0, executed.get());
+
+        Set<Integer> flushed = ConcurrentHashMap.newKeySet();
+        WriteBehindBatchExecutor<Integer> recovered = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10,
+                param -> flushed.addAll(param.getTaskList()), new BatchOptions(), 1024, 60000L);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flushed.size() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recovered.close();
+
+        assertEquals(10, flushed.size());
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * 失败隔离下只有无法处理的任务消耗重试次数，次数用完以后交给死信处理并标记为已flush，重启以后不再回放
+     */
+    @Test
+    public void deadLetterAfterMaxAttempts() throws Exception {
+        File dir = Files.createTempDirectory("wal").toFile();
+        Set<Integer> flushed = ConcurrentHashMap.newKeySet();
+        AtomicInteger poisonAttempts = new AtomicInteger();
+        List<Integer> deadLetters = new CopyOnWriteArrayList<>();
+        WriteBehindBatchExecutor<Integer> executor = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10, param -> {
+            if (param.getTaskList().contains(-1)) {
+                if (param.getTaskList().size() == 1) {
+                    poisonAttempts.incrementAndGet();
+                }
+                throw new IllegalStateException("无法处理的任务");
+            }
+            flushed.addAll(param.getTaskList());
+        }, new BatchOptions().setFailureIsolation(FailureIsolation.BISECT), 1024, 10L);
+        executor.setMaxAttempts(3);
+        executor.setDeadLetterHandler((key, task, cause) -> deadLetters.add(task));
+        for (int i = 0; i < 20; i++) {
+            executor.execute("k", i == 10 ? -1 : i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((flushed.size() < 19 || deadLetters.isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        executor.close();
+
+        assertEquals(19, flushed.size());
+        assertEquals(Collections.singletonList(-1), deadLetters);
+        assertEquals(3, poisonAttempts.get());
+
+        AtomicInteger replayed = new AtomicInteger();
+        WriteBehindBatchExecutor<Integer> recovered = new WriteBehindBatchExecutor<>(dir, CODEC, 50, 10,
+                param -> replayed.addAndGet(param.getTaskList().size()), new BatchOptions(), 1024, 60000L);
+        Thread.sleep(100);
+        recovered.close();
+        assertEquals(0, replayed.get());
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+}